@@ -0,0 +1,33 @@
+#!/bin/bash
+# Compiles the webapp classes and the benchmarks, then runs a benchmark's (or the load generator's) main.
+#
+# usage: JMH_LIB=/path/to/jmh/jars ./run.sh RegistrationStorageBenchmark [jmh options]
+#        JMH_LIB=/path/to/jmh/jars ./run.sh LoadGenerator [--name=value options]
+#
+# JMH_LIB needs jmh-core, jmh-generator-annprocess, jopt-simple and commons-math3.  The IdP and Tomcat jars are
+# taken from the same places the Dockerfile compiles against, set CLASSPATH to use others.
+set -e
+
+BENCHMARK=${1:?benchmark class, e.g. RegistrationStorageBenchmark}
+shift
+
+DIR=$(cd "$(dirname "$0")" && pwd)
+WEBAPP=$DIR/../opt/shibboleth-idp/edit-webapp/WEB-INF
+IDP_HOME=${IDP_HOME:-/opt/shibboleth-idp}
+JMH_LIB=${JMH_LIB:?directory with the jmh jars}
+CLASSPATH=${CLASSPATH:-$IDP_HOME/dist/webapp/WEB-INF/lib/*:/usr/local/tomcat/lib/*}
+CLASSPATH=$CLASSPATH:$WEBAPP/lib/*:$JMH_LIB/*
+export CLASSPATH
+
+rm -rf "$DIR/build" && mkdir -p "$DIR/build/classes"
+javac -d "$DIR/build/classes" $(find "$WEBAPP/classes" "$DIR/src" -name '*.java')
+
+# the relying party id and origin come from the repo's WebAuthn.properties
+JVM_ARGS="-Dlogback.configurationFile=$DIR/logback.xml -Dedu.duke.oit.idms.idp.authn.webauthn.propertiesFile=$DIR/../opt/shibboleth-idp/conf/authn/WebAuthn.properties"
+
+# JMH benchmarks fork, so they need the same system properties passed on
+if [[ $BENCHMARK == *Benchmark ]]; then
+  set -- -jvmArgsPrepend "$JVM_ARGS" "$@"
+fi
+
+java -cp "$DIR/build/classes:$CLASSPATH" $JVM_ARGS edu.duke.oit.idms.idp.authn.webauthn.benchmark.$BENCHMARK "$@"
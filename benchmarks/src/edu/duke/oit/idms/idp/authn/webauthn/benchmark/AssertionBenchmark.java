@@ -0,0 +1,132 @@
+/**
+ * Copyright 2019 Duke University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package edu.duke.oit.idms.idp.authn.webauthn.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import edu.duke.oit.idms.idp.authn.webauthn.AssertionVerifier;
+import edu.duke.oit.idms.idp.authn.webauthn.WebAuthnEngine;
+
+/**
+ * A full login per operation: type=authstart through the registration servlet, a signed assertion from a
+ * {@link SoftwareAuthenticator}, and {@link AssertionVerifier} (what the validation action runs: JSON parsing,
+ * finishAssertion, the counter update and the ownership check).  Each thread registers its own user through
+ * type=start/finish first; storage also holds background registrations so the indexes aren't tiny.
+ *
+ * Reports throughput and sampled latency (p99 etc).  The authenticator's signature is made inside the operation
+ * (the challenge is new every time), which for RS256 is a noticeable part of it.  The relying party id and
+ * origin come from WebAuthn.properties, run.sh points at the one in this repo.
+ *
+ * @author shilen
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class AssertionBenchmark {
+
+  /**
+   * the servlet, verifier and storage shared by all threads
+   */
+  @State(Scope.Benchmark)
+  public static class Idp {
+
+    /** key type of every simulated user's authenticator; EdDSA needs a newer webauthn-server-core than 1.3.0 */
+    @Param({ "ES256", "RS256" })
+    public SoftwareAuthenticator.Algorithm algorithm;
+
+    /** synthetic registrations already in storage */
+    @Param({ "100000" })
+    public int registrations;
+
+    InProcessEndpoints endpoints;
+
+    final AtomicInteger nextUser = new AtomicInteger();
+
+    /**
+     * fill storage and start the servlet
+     */
+    @Setup(Level.Trial)
+    public void setup() {
+      SyntheticRegistrations.addTo(WebAuthnEngine.getInstance().getRegistrationStore(), registrations);
+
+      endpoints = new InProcessEndpoints();
+    }
+  }
+
+  /**
+   * one registered user per thread, authenticators aren't thread safe
+   */
+  @State(Scope.Thread)
+  public static class User {
+
+    SimulatedUser user;
+
+    /**
+     * @param idp
+     */
+    @Setup(Level.Trial)
+    public void setup(Idp idp) {
+      WebAuthnEngine engine = WebAuthnEngine.getInstance();
+      String rpId = engine.getRelyingParty().getIdentity().getId();
+      String origin = engine.getRelyingParty().getOrigins().iterator().next();
+
+      user = new SimulatedUser(idp.endpoints, "benchmark" + idp.algorithm + idp.nextUser.incrementAndGet(),
+          new SoftwareAuthenticator(idp.algorithm, rpId, origin));
+      user.register();
+    }
+  }
+
+  /**
+   * @param user
+   */
+  @Benchmark
+  public void login(User user) {
+    user.user.login();
+  }
+
+  /**
+   * Runs the benchmark with any JMH options given as arguments.
+   * 
+   * @param args
+   * @throws Exception
+   */
+  public static void main(String[] args) throws Exception {
+    new Runner(new OptionsBuilder()
+        .parent(new CommandLineOptions(args))
+        .include(AssertionBenchmark.class.getName())
+        .build()).run();
+  }
+}
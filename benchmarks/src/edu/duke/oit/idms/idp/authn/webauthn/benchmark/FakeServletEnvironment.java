@@ -0,0 +1,254 @@
+/**
+ * Copyright 2019 Duke University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package edu.duke.oit.idms.idp.authn.webauthn.benchmark;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Just enough of a servlet container to call the registration servlet in process: requests with parameters and a
+ * body, responses that collect what's written.  Anything else the servlet asks for gets null, 0 or false.
+ *
+ * @author shilen
+ */
+public class FakeServletEnvironment {
+
+  private final ServletContext servletContext;
+
+  private final Map<String, Object> servletContextAttributes = Collections.synchronizedMap(new HashMap<String, Object>());
+
+  /**
+   * constructor
+   */
+  public FakeServletEnvironment() {
+    servletContext = internal_proxy(ServletContext.class, (method, args) -> {
+      switch (method) {
+        case "getAttribute":
+          return servletContextAttributes.get(args[0]);
+        case "setAttribute":
+          servletContextAttributes.put((String)args[0], args[1]);
+          return null;
+        case "getContextPath":
+          return "/idp";
+        default:
+          return null;
+      }
+    });
+  }
+
+  /**
+   * @param servlet
+   * @return the servlet, initialized
+   */
+  public <T extends HttpServlet> T init(T servlet) {
+    ServletConfig config = internal_proxy(ServletConfig.class, (method, args) -> {
+      switch (method) {
+        case "getServletContext":
+          return servletContext;
+        case "getServletName":
+          return servlet.getClass().getSimpleName();
+        case "getInitParameterNames":
+          return Collections.emptyEnumeration();
+        default:
+          return null;
+      }
+    });
+
+    try {
+      servlet.init(config);
+    } catch (Exception e) {
+      throw new RuntimeException("Unable to init " + servlet.getClass().getName(), e);
+    }
+
+    return servlet;
+  }
+
+  /**
+   * @param servlet
+   * @param parameters
+   * @param body request body, may be null
+   * @return response
+   */
+  public FakeResponse post(HttpServlet servlet, Map<String, String> parameters, String body) {
+    byte[] bodyBytes = body == null ? new byte[0] : body.getBytes(StandardCharsets.UTF_8);
+    ByteArrayInputStream bodyStream = new ByteArrayInputStream(bodyBytes);
+
+    ServletInputStream inputStream = new ServletInputStream() {
+
+      @Override
+      public int read() throws IOException {
+        return bodyStream.read();
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        return bodyStream.read(b, off, len);
+      }
+
+      @Override
+      public boolean isFinished() {
+        return bodyStream.available() == 0;
+      }
+
+      @Override
+      public boolean isReady() {
+        return true;
+      }
+
+      @Override
+      public void setReadListener(ReadListener readListener) {
+        throw new UnsupportedOperationException();
+      }
+    };
+
+    HttpServletRequest request = internal_proxy(HttpServletRequest.class, (method, args) -> {
+      switch (method) {
+        case "getMethod":
+          return "POST";
+        case "getProtocol":
+          return "HTTP/1.1";
+        case "getParameter":
+          return parameters.get(args[0]);
+        case "getServletContext":
+          return servletContext;
+        case "getInputStream":
+          return inputStream;
+        case "getReader":
+          return new BufferedReader(new StringReader(body == null ? "" : body));
+        case "getContentLength":
+          return bodyBytes.length;
+        case "getContentLengthLong":
+          return (long)bodyBytes.length;
+        case "getCharacterEncoding":
+          return "UTF-8";
+        case "getRemoteAddr":
+          return "127.0.0.1";
+        default:
+          return null;
+      }
+    });
+
+    FakeResponse fakeResponse = new FakeResponse();
+    HttpServletResponse response = internal_proxy(HttpServletResponse.class, (method, args) -> {
+      switch (method) {
+        case "getWriter":
+          return fakeResponse.writer;
+        case "setStatus":
+        case "sendError":
+          fakeResponse.status = (Integer)args[0];
+          return null;
+        case "getStatus":
+          return fakeResponse.status;
+        default:
+          return null;
+      }
+    });
+
+    try {
+      servlet.service(request, response);
+    } catch (Exception e) {
+      throw new RuntimeException("POST failed, parameters=" + parameters, e);
+    }
+
+    return fakeResponse;
+  }
+
+  /**
+   * @return servlet context shared by everything this environment initializes
+   */
+  public ServletContext getServletContext() {
+    return servletContext;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> T internal_proxy(Class<T> type, FakeMethod fakeMethod) {
+    return (T)Proxy.newProxyInstance(FakeServletEnvironment.class.getClassLoader(), new Class<?>[] { type }, (proxy, method, args) -> {
+      if (method.getDeclaringClass() == Object.class) {
+        switch (method.getName()) {
+          case "equals":
+            return proxy == args[0];
+          case "hashCode":
+            return System.identityHashCode(proxy);
+          default:
+            return type.getSimpleName() + "@fake";
+        }
+      }
+
+      Object result = fakeMethod.invoke(method.getName(), args);
+      if (result == null && method.getReturnType().isPrimitive()) {
+        Class<?> returnType = method.getReturnType();
+        if (returnType == boolean.class) {
+          return false;
+        } else if (returnType == long.class) {
+          return 0L;
+        } else if (returnType != void.class) {
+          return 0;
+        }
+      }
+
+      return result;
+    });
+  }
+
+  private interface FakeMethod {
+    Object invoke(String method, Object[] args) throws Exception;
+  }
+
+  /**
+   * what the servlet wrote
+   */
+  public static class FakeResponse {
+
+    private final StringWriter body = new StringWriter();
+
+    private final PrintWriter writer = new PrintWriter(body);
+
+    private int status = 200;
+
+    /**
+     * @return status
+     */
+    public int getStatus() {
+      return status;
+    }
+
+    /**
+     * @return body
+     */
+    public String getBody() {
+      writer.flush();
+      return body.toString();
+    }
+  }
+}
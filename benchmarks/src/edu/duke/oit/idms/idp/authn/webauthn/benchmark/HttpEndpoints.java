@@ -0,0 +1,102 @@
+/**
+ * Copyright 2019 Duke University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package edu.duke.oit.idms.idp.authn.webauthn.benchmark;
+
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.StringJoiner;
+
+/**
+ * Reaches the registration servlet and the login servlet over HTTP, like a browser.  Parameters go in the
+ * query string and the body is posted as is, the way the registration page does it.
+ *
+ * @author shilen
+ */
+public class HttpEndpoints implements WebAuthnEndpoints {
+
+  private final HttpClient client;
+
+  private final URI registrationUri;
+
+  private final URI loginUri;
+
+  /**
+   * @param client
+   * @param registrationUri
+   * @param loginUri
+   */
+  public HttpEndpoints(HttpClient client, URI registrationUri, URI loginUri) {
+    this.client = client;
+    this.registrationUri = registrationUri;
+    this.loginUri = loginUri;
+  }
+
+  @Override
+  public String registration(Map<String, String> parameters, String body) {
+    URI uri = URI.create(registrationUri + "?" + internal_form(parameters));
+    HttpRequest request = HttpRequest.newBuilder(uri)
+        .header("Content-Type", "application/json")
+        .POST(HttpRequest.BodyPublishers.ofString(body == null ? "" : body))
+        .build();
+
+    return internal_send(request);
+  }
+
+  @Override
+  public void login(String netid, String webauthnFormData) {
+    Map<String, String> form = new HashMap<String, String>();
+    form.put("j_username", netid);
+    form.put("webauthnformdata", webauthnFormData);
+
+    HttpRequest request = HttpRequest.newBuilder(loginUri)
+        .header("Content-Type", "application/x-www-form-urlencoded")
+        .POST(HttpRequest.BodyPublishers.ofString(internal_form(form)))
+        .build();
+
+    internal_send(request);
+  }
+
+  private String internal_send(HttpRequest request) {
+    try {
+      HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+      if (response.statusCode() != 200) {
+        throw new RuntimeException("Request to " + request.uri().getPath() + " failed, status=" + response.statusCode() + ", body=" + response.body());
+      }
+
+      return response.body();
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new RuntimeException("Request to " + request.uri().getPath() + " failed", e);
+    }
+  }
+
+  private static String internal_form(Map<String, String> parameters) {
+    StringJoiner form = new StringJoiner("&");
+    for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+      form.add(URLEncoder.encode(parameter.getKey(), StandardCharsets.UTF_8) + "=" + URLEncoder.encode(parameter.getValue(), StandardCharsets.UTF_8));
+    }
+
+    return form.toString();
+  }
+}
@@ -0,0 +1,62 @@
+/**
+ * Copyright 2019 Duke University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package edu.duke.oit.idms.idp.authn.webauthn.benchmark;
+
+import java.util.Map;
+
+import edu.duke.oit.idms.idp.authn.webauthn.AssertionVerifier;
+import edu.duke.oit.idms.idp.authn.webauthn.PendingCeremonyStoreFactory;
+import edu.duke.oit.idms.idp.authn.webauthn.RegistrationServlet;
+import edu.duke.oit.idms.idp.authn.webauthn.WebAuthnEngine;
+
+/**
+ * Calls the registration servlet through a {@link FakeServletEnvironment} and logs in with
+ * {@link AssertionVerifier}, what the validation action runs.  No HTTP, so only the WebAuthn code is measured.
+ *
+ * @author shilen
+ */
+public class InProcessEndpoints implements WebAuthnEndpoints {
+
+  private final FakeServletEnvironment environment = new FakeServletEnvironment();
+
+  private final RegistrationServlet servlet;
+
+  private final AssertionVerifier verifier;
+
+  /**
+   * constructor
+   */
+  public InProcessEndpoints() {
+    servlet = environment.init(new RegistrationServlet());
+    verifier = new AssertionVerifier(WebAuthnEngine.getInstance(), PendingCeremonyStoreFactory.getPendingCeremonyStore(environment.getServletContext()));
+  }
+
+  @Override
+  public String registration(Map<String, String> parameters, String body) {
+    FakeServletEnvironment.FakeResponse response = environment.post(servlet, parameters, body);
+    if (response.getStatus() != 200) {
+      throw new RuntimeException("Registration request failed, parameters=" + parameters + ", status=" + response.getStatus() + ", body=" + response.getBody());
+    }
+
+    return response.getBody();
+  }
+
+  @Override
+  public void login(String netid, String webauthnFormData) {
+    verifier.verify(webauthnFormData, netid);
+  }
+}
@@ -0,0 +1,257 @@
+/**
+ * Copyright 2019 Duke University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package edu.duke.oit.idms.idp.authn.webauthn.benchmark;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.Wrapper;
+import org.apache.catalina.startup.Tomcat;
+
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.SlidingTimeWindowArrayReservoir;
+import com.codahale.metrics.Timer;
+
+import edu.duke.oit.idms.idp.authn.webauthn.CeremonyLimiter;
+import edu.duke.oit.idms.idp.authn.webauthn.InMemoryPendingCeremonyStore;
+import edu.duke.oit.idms.idp.authn.webauthn.PendingCeremonyStore;
+import edu.duke.oit.idms.idp.authn.webauthn.PendingCeremonyStoreFactory;
+import edu.duke.oit.idms.idp.authn.webauthn.RegistrationServlet;
+import edu.duke.oit.idms.idp.authn.webauthn.WebAuthnEngine;
+
+/**
+ * Closed loop load test.  Starts the registration servlet (and {@link LoginServlet} in place of the login flow)
+ * in an embedded Tomcat, registers simulated users over HTTP with type=start/finish, then has them log in over
+ * and over (authstart, then the login form post) with think time between logins.  Every reportSeconds it
+ * prints throughput, latency percentiles, errors, HTTP sessions, pending ceremonies, the
+ * ceremony limiter's active and queued counts and heap.
+ *
+ * Options (--name=value): users (1000), concurrency (16), thinkMillis (0), durationSeconds (60),
+ * reportSeconds (5), algorithm (ES256).  Each user belongs to one client thread, authenticators aren't thread safe.
+ *
+ * @author shilen
+ */
+public class LoadGenerator {
+
+  private final Map<String, String> options;
+
+  private final Timer registrations;
+
+  private final Timer logins;
+
+  private final Timer authstarts;
+
+  private final AtomicLong errors = new AtomicLong();
+
+  private volatile String phase = "starting";
+
+  private Context context;
+
+  private LoadGenerator(Map<String, String> options) {
+    this.options = options;
+
+    long reportSeconds = internal_option("reportSeconds", 5);
+    registrations = new Timer(new SlidingTimeWindowArrayReservoir(reportSeconds, TimeUnit.SECONDS));
+    logins = new Timer(new SlidingTimeWindowArrayReservoir(reportSeconds, TimeUnit.SECONDS));
+    authstarts = new Timer(new SlidingTimeWindowArrayReservoir(reportSeconds, TimeUnit.SECONDS));
+  }
+
+  /**
+   * @param args --name=value options
+   * @throws Exception
+   */
+  public static void main(String[] args) throws Exception {
+    Map<String, String> options = new HashMap<String, String>();
+    for (String arg : args) {
+      if (!arg.startsWith("--") || !arg.contains("=")) {
+        throw new RuntimeException("Options are --name=value, got: " + arg);
+      }
+
+      options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+    }
+
+    new LoadGenerator(options).run();
+    System.exit(0);
+  }
+
+  private void run() throws Exception {
+    int users = (int)internal_option("users", 1000);
+    int concurrency = (int)internal_option("concurrency", 16);
+    long thinkMillis = internal_option("thinkMillis", 0);
+    long durationMillis = internal_option("durationSeconds", 60) * 1000L;
+    long reportSeconds = internal_option("reportSeconds", 5);
+    SoftwareAuthenticator.Algorithm algorithm = SoftwareAuthenticator.Algorithm.valueOf(options.getOrDefault("algorithm", "ES256"));
+
+    Tomcat tomcat = internal_startTomcat(concurrency);
+    String base = "http://localhost:" + tomcat.getConnector().getLocalPort() + "/idp";
+    HttpEndpoints endpoints = new HttpEndpoints(HttpClient.newBuilder().executor(Executors.newFixedThreadPool(concurrency)).build(),
+        URI.create(base + "/webauthn/registration"), URI.create(base + "/Authn/WebAuthn"));
+
+    WebAuthnEngine engine = WebAuthnEngine.getInstance();
+    String rpId = engine.getRelyingParty().getIdentity().getId();
+    String origin = engine.getRelyingParty().getOrigins().iterator().next();
+
+    List<List<SimulatedUser>> usersByClient = new ArrayList<List<SimulatedUser>>();
+    for (int client = 0; client < concurrency; client++) {
+      usersByClient.add(new ArrayList<SimulatedUser>());
+    }
+
+    for (int i = 0; i < users; i++) {
+      usersByClient.get(i % concurrency).add(new SimulatedUser(endpoints, "load" + i, new SoftwareAuthenticator(algorithm, rpId, origin)));
+    }
+
+    ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+    long start = System.currentTimeMillis();
+    reporter.scheduleAtFixedRate(() -> internal_report(start, reportSeconds), reportSeconds, reportSeconds, TimeUnit.SECONDS);
+
+    ExecutorService clients = Executors.newFixedThreadPool(concurrency);
+
+    phase = "register";
+    List<Future<?>> futures = new ArrayList<Future<?>>();
+    for (List<SimulatedUser> clientUsers : usersByClient) {
+      futures.add(clients.submit(() -> {
+        for (SimulatedUser user : clientUsers) {
+          try (Timer.Context timer = registrations.time()) {
+            user.register();
+          } catch (RuntimeException e) {
+            internal_error(e);
+          }
+        }
+      }));
+    }
+
+    for (Future<?> future : futures) {
+      future.get();
+    }
+
+    phase = "login";
+    long end = System.currentTimeMillis() + durationMillis;
+    futures.clear();
+    for (List<SimulatedUser> clientUsers : usersByClient) {
+      futures.add(clients.submit(() -> {
+        int next = 0;
+        while (System.currentTimeMillis() < end && !clientUsers.isEmpty()) {
+          SimulatedUser user = clientUsers.get(next++ % clientUsers.size());
+          try (Timer.Context timer = logins.time()) {
+            String webauthnFormData;
+            try (Timer.Context authstartTimer = authstarts.time()) {
+              webauthnFormData = user.startLogin();
+            }
+
+            user.finishLogin(webauthnFormData);
+          } catch (RuntimeException e) {
+            internal_error(e);
+          }
+
+          if (thinkMillis > 0) {
+            try {
+              Thread.sleep(thinkMillis);
+            } catch (InterruptedException e) {
+              return;
+            }
+          }
+        }
+      }));
+    }
+
+    for (Future<?> future : futures) {
+      future.get();
+    }
+
+    phase = "done";
+    internal_report(start, reportSeconds);
+    reporter.shutdownNow();
+    clients.shutdownNow();
+
+    // main exits the jvm, which takes tomcat with it
+  }
+
+  private Tomcat internal_startTomcat(int concurrency) throws Exception {
+    File baseDir = Files.createTempDirectory("webauthn-load").toFile();
+
+    Tomcat tomcat = new Tomcat();
+    tomcat.setBaseDir(baseDir.getAbsolutePath());
+    tomcat.setPort(0);
+    tomcat.getConnector().setProperty("maxThreads", String.valueOf(Math.max(200, concurrency * 2)));
+
+    context = tomcat.addContext("/idp", baseDir.getAbsolutePath());
+
+    // init servlets at startup, not on the first request
+    Wrapper registration = Tomcat.addServlet(context, "registration", new RegistrationServlet());
+    registration.setLoadOnStartup(1);
+    context.addServletMappingDecoded("/webauthn/registration", "registration");
+    Wrapper login = Tomcat.addServlet(context, "login", new LoginServlet());
+    login.setLoadOnStartup(2);
+    context.addServletMappingDecoded("/Authn/WebAuthn", "login");
+
+    tomcat.start();
+    return tomcat;
+  }
+
+  private void internal_error(RuntimeException e) {
+    if (errors.incrementAndGet() <= 10) {
+      System.err.println("Error (only the first 10 are shown): " + e);
+    }
+  }
+
+  private void internal_report(long start, long reportSeconds) {
+    MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+    PendingCeremonyStore pendingCeremonyStore = PendingCeremonyStoreFactory.getPendingCeremonyStore(context.getServletContext());
+
+    StringBuilder line = new StringBuilder();
+    line.append(String.format("%6ds %-8s", (System.currentTimeMillis() - start) / 1000, phase));
+    line.append(internal_format("register", registrations, reportSeconds));
+    line.append(internal_format("authstart", authstarts, reportSeconds));
+    line.append(internal_format("login", logins, reportSeconds));
+    line.append(" errors=").append(errors.get());
+    line.append(" sessions=").append(context.getManager().getActiveSessions());
+    if (pendingCeremonyStore instanceof InMemoryPendingCeremonyStore) {
+      line.append(" pending=").append(((InMemoryPendingCeremonyStore)pendingCeremonyStore).size());
+    }
+
+    line.append(" limiterActive=").append(CeremonyLimiter.getInstance().getActive());
+    line.append(" limiterQueued=").append(CeremonyLimiter.getInstance().getQueued());
+    line.append(" heapUsedMB=").append(heap.getUsed() >> 20).append(" heapCommittedMB=").append(heap.getCommitted() >> 20);
+    System.out.println(line);
+  }
+
+  private static String internal_format(String name, Timer timer, long reportSeconds) {
+    Snapshot snapshot = timer.getSnapshot();
+    return String.format(" %s[%.0f/s p50=%.1fms p95=%.1fms p99=%.1fms]", name, (double)snapshot.size() / reportSeconds,
+        snapshot.getMedian() / 1e6, snapshot.get95thPercentile() / 1e6, snapshot.get99thPercentile() / 1e6);
+  }
+
+  private long internal_option(String name, long defaultValue) {
+    String value = options.get(name);
+    return value == null ? defaultValue : Long.parseLong(value);
+  }
+}
@@ -0,0 +1,77 @@
+/**
+ * Copyright 2019 Duke University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package edu.duke.oit.idms.idp.authn.webauthn.benchmark;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import edu.duke.oit.idms.idp.authn.webauthn.AssertionVerifier;
+import edu.duke.oit.idms.idp.authn.webauthn.CeremonyLimiter;
+import edu.duke.oit.idms.idp.authn.webauthn.CeremonyRejectedException;
+import edu.duke.oit.idms.idp.authn.webauthn.PendingCeremonyStoreFactory;
+import edu.duke.oit.idms.idp.authn.webauthn.WebAuthnEngine;
+
+/**
+ * Stands in for the login flow in the load generator's container: takes the login form post (j_username,
+ * webauthnformdata) and runs {@link AssertionVerifier} like the validation action does, within the
+ * {@link CeremonyLimiter}.  Creates a session on success like the IdP does.
+ *
+ * @author shilen
+ */
+public class LoginServlet extends HttpServlet {
+
+  private static final long serialVersionUID = 1L;
+
+  private transient AssertionVerifier verifier;
+
+  @Override
+  public void init() throws ServletException {
+    verifier = new AssertionVerifier(WebAuthnEngine.getInstance(), PendingCeremonyStoreFactory.getPendingCeremonyStore(getServletContext()));
+  }
+
+  @Override
+  protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+    response.setContentType("application/json");
+
+    String username = request.getParameter("j_username");
+    CeremonyLimiter limiter = CeremonyLimiter.getInstance();
+    try {
+      limiter.acquire();
+    } catch (CeremonyRejectedException e) {
+      response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+      response.getWriter().print("{\"success\":false,\"retry\":true}");
+      return;
+    }
+
+    try {
+      verifier.verify(request.getParameter("webauthnformdata"), username);
+    } catch (RuntimeException e) {
+      response.setStatus(401);
+      response.getWriter().print("{\"success\":false}");
+      return;
+    } finally {
+      limiter.release();
+    }
+
+    request.getSession().setAttribute("username", username);
+    response.getWriter().print("{\"success\":true}");
+  }
+}
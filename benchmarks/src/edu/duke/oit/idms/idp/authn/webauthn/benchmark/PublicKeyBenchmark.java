@@ -0,0 +1,159 @@
+/**
+ * Copyright 2019 Duke University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package edu.duke.oit.idms.idp.authn.webauthn.benchmark;
+
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.concurrent.TimeUnit;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.hash.Hashing;
+import com.yubico.internal.util.WebAuthnCodecs;
+import com.yubico.webauthn.data.ByteArray;
+
+/**
+ * What the relying party does with the stored public key on every assertion (finishAssertion step 16): decode
+ * the COSE key and build a java.security key from it, then verify the signature with a new Signature from the
+ * Bouncy Castle provider.  importAndVerify is that step as a whole, verify is the part left if the parsed key
+ * were cached per credential; the difference is what such a cache could save.  webauthn-server-core 1.3.0 calls
+ * WebAuthnCodecs.importCosePublicKey itself, with no way to hand it a parsed key.
+ *
+ * @author shilen
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class PublicKeyBenchmark {
+
+  private static final BouncyCastleProvider provider = new BouncyCastleProvider();
+
+  /**
+   * a stored key and a signature it verifies
+   */
+  @State(Scope.Thread)
+  public static class Credential {
+
+    /** EdDSA isn't supported by webauthn-server-core 1.3.0 */
+    @Param({ "ES256", "RS256" })
+    public String algorithm;
+
+    ByteArray publicKeyCose;
+
+    PublicKey publicKey;
+
+    String signatureAlgorithm;
+
+    byte[] signedBytes;
+
+    byte[] signature;
+
+    /**
+     * @throws Exception
+     */
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+      SoftwareAuthenticator authenticator = new SoftwareAuthenticator(SoftwareAuthenticator.Algorithm.valueOf(algorithm), "localhost", "https://localhost");
+      publicKeyCose = authenticator.getPublicKeyCose();
+      publicKey = WebAuthnCodecs.importCosePublicKey(publicKeyCose);
+      // as the relying party picks it (BouncyCastleCrypto), by key algorithm
+      signatureAlgorithm = "EC".equals(publicKey.getAlgorithm()) ? "SHA256withECDSA" : "SHA256withRSA";
+
+      ByteArray challenge = new ByteArray(new byte[32]);
+      JsonNode response = new ObjectMapper().readTree(authenticator.assertion(challenge, challenge)).get("credential").get("response");
+      ByteArray authenticatorData = ByteArray.fromBase64Url(response.get("authenticatorData").asText());
+      ByteArray clientDataJson = ByteArray.fromBase64Url(response.get("clientDataJSON").asText());
+
+      // what the authenticator signed: authenticatorData || sha256(clientDataJSON)
+      signedBytes = authenticatorData.concat(new ByteArray(Hashing.sha256().hashBytes(clientDataJson.getBytes()).asBytes())).getBytes();
+      signature = ByteArray.fromBase64Url(response.get("signature").asText()).getBytes();
+
+      if (!internal_verify(publicKey)) {
+        throw new RuntimeException("Signature doesn't verify, algorithm=" + algorithm);
+      }
+    }
+
+    boolean internal_verify(PublicKey key) throws Exception {
+      Signature verifier = Signature.getInstance(signatureAlgorithm, provider);
+      verifier.initVerify(key);
+      verifier.update(signedBytes);
+      return verifier.verify(signature);
+    }
+  }
+
+  /**
+   * @param credential
+   * @return parsed key
+   * @throws Exception
+   */
+  @Benchmark
+  public PublicKey importCosePublicKey(Credential credential) throws Exception {
+    return WebAuthnCodecs.importCosePublicKey(credential.publicKeyCose);
+  }
+
+  /**
+   * @param credential
+   * @return true
+   * @throws Exception
+   */
+  @Benchmark
+  public boolean verify(Credential credential) throws Exception {
+    return credential.internal_verify(credential.publicKey);
+  }
+
+  /**
+   * @param credential
+   * @return true
+   * @throws Exception
+   */
+  @Benchmark
+  public boolean importAndVerify(Credential credential) throws Exception {
+    return credential.internal_verify(WebAuthnCodecs.importCosePublicKey(credential.publicKeyCose));
+  }
+
+  /**
+   * Other JMH options can be passed as arguments.
+   * 
+   * @param args
+   * @throws Exception
+   */
+  public static void main(String[] args) throws Exception {
+    new Runner(new OptionsBuilder()
+        .parent(new CommandLineOptions(args))
+        .include(PublicKeyBenchmark.class.getName())
+        .build()).run();
+  }
+}
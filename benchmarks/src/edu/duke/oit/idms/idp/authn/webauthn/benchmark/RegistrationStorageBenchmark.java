@@ -0,0 +1,214 @@
+/**
+ * Copyright 2019 Duke University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package edu.duke.oit.idms.idp.authn.webauthn.benchmark;
+
+import java.util.Optional;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.yubico.webauthn.RegisteredCredential;
+import com.yubico.webauthn.data.ByteArray;
+import com.yubico.webauthn.data.PublicKeyCredentialDescriptor;
+
+import edu.duke.oit.idms.idp.authn.webauthn.OffHeapCredentialRepository;
+import edu.duke.oit.idms.idp.authn.webauthn.RegistrationStorage;
+import edu.duke.oit.idms.idp.authn.webauthn.RegistrationStore;
+import edu.duke.oit.idms.idp.authn.webauthn.TieredCredentialRepository;
+
+/**
+ * Throughput of the {@link RegistrationStore} lookups the relying party makes during a ceremony, per store
+ * (memory: {@link RegistrationStorage}, offHeap: {@link OffHeapCredentialRepository}, tiered: a
+ * {@link TieredCredentialRepository} holding a tenth of the users in front of offHeap), with storage filled
+ * with {@link SyntheticRegistrations}.  Keys are picked at random from all registrations so
+ * the maps are not just serving one hot entry.  {@link #main(String[])} runs everything at 1, 16 and 64 threads
+ * with the GC profiler for allocation rates.
+ *
+ * @author shilen
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class RegistrationStorageBenchmark {
+
+  /**
+   * storage shared by all threads, rebuilt per registration count
+   */
+  @State(Scope.Benchmark)
+  public static class Storage {
+
+    /** 10M needs a heap of around 16g, e.g. -jvmArgsAppend -Xmx16g */
+    @Param({ "10000", "100000", "1000000", "10000000" })
+    public int registrations;
+
+    @Param({ "memory", "offHeap", "tiered" })
+    public String store;
+
+    RegistrationStore storage;
+
+    /**
+     * fill storage
+     */
+    @Setup(Level.Trial)
+    public void setup() {
+      if ("memory".equals(store)) {
+        RegistrationStorage memory = new RegistrationStorage();
+        for (int i = 0; i < registrations; i++) {
+          memory.addRegistration(SyntheticRegistrations.registration(i));
+        }
+
+        storage = memory;
+        return;
+      }
+
+      OffHeapCredentialRepository offHeap = new OffHeapCredentialRepository();
+      for (int i = 0; i < registrations; i++) {
+        offHeap.addRegistration(SyntheticRegistrations.registration(i));
+      }
+
+      storage = "tiered".equals(store) ? new TieredCredentialRepository(offHeap, Math.max(1, registrations / 10)) : offHeap;
+    }
+  }
+
+  /**
+   * keys for one thread, precomputed so building them isn't measured
+   */
+  @State(Scope.Thread)
+  public static class Keys {
+
+    private static final int KEYS = 4096;
+
+    ByteArray[] credentialIds = new ByteArray[KEYS];
+    ByteArray[] userHandles = new ByteArray[KEYS];
+    String[] netids = new String[KEYS];
+
+    int next = 0;
+
+    long signatureCount = 0;
+
+    /**
+     * @param storage
+     */
+    @Setup(Level.Trial)
+    public void setup(Storage storage) {
+      SplittableRandom random = new SplittableRandom(Thread.currentThread().getId());
+      for (int k = 0; k < KEYS; k++) {
+        int i = random.nextInt(storage.registrations);
+        credentialIds[k] = SyntheticRegistrations.credentialId(i);
+        userHandles[k] = SyntheticRegistrations.userHandle(i);
+        netids[k] = SyntheticRegistrations.netid(i);
+      }
+    }
+
+    int next() {
+      next = (next + 1) & (KEYS - 1);
+      return next;
+    }
+  }
+
+  /**
+   * @param storage
+   * @param keys
+   * @return credentials
+   */
+  @Benchmark
+  public Set<RegisteredCredential> lookupAll(Storage storage, Keys keys) {
+    return storage.storage.lookupAll(keys.credentialIds[keys.next()]);
+  }
+
+  /**
+   * @param storage
+   * @param keys
+   * @return credential
+   */
+  @Benchmark
+  public Optional<RegisteredCredential> lookup(Storage storage, Keys keys) {
+    int k = keys.next();
+    return storage.storage.lookup(keys.credentialIds[k], keys.userHandles[k]);
+  }
+
+  /**
+   * @param storage
+   * @param keys
+   * @return credential ids
+   */
+  @Benchmark
+  public Set<PublicKeyCredentialDescriptor> getCredentialIdsForUsername(Storage storage, Keys keys) {
+    return storage.storage.getCredentialIdsForUsername(keys.netids[keys.next()]);
+  }
+
+  /**
+   * @param storage
+   * @param keys
+   * @return netid
+   */
+  @Benchmark
+  public Optional<String> getUsernameForUserHandle(Storage storage, Keys keys) {
+    return storage.storage.getUsernameForUserHandle(keys.userHandles[keys.next()]);
+  }
+
+  /**
+   * a new count every call, so every call is a write
+   * 
+   * @param storage
+   * @param keys
+   */
+  @Benchmark
+  public void updateSignatureCount(Storage storage, Keys keys) {
+    int k = keys.next();
+    storage.storage.updateSignatureCount(keys.credentialIds[k], keys.userHandles[k], ++keys.signatureCount);
+  }
+
+  /**
+   * Runs the benchmarks single threaded and contended, with the GC profiler.  Other JMH options (e.g. -p
+   * registrations=10000) can be passed as arguments.
+   * 
+   * @param args
+   * @throws Exception
+   */
+  public static void main(String[] args) throws Exception {
+    CommandLineOptions commandLineOptions = new CommandLineOptions(args);
+    for (int threads : new int[] { 1, 16, 64 }) {
+      ChainedOptionsBuilder options = new OptionsBuilder()
+          .parent(commandLineOptions)
+          .include(RegistrationStorageBenchmark.class.getName())
+          .addProfiler(GCProfiler.class)
+          .threads(threads);
+      new Runner(options.build()).run();
+    }
+  }
+}
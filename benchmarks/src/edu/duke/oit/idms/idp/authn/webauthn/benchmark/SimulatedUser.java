@@ -0,0 +1,126 @@
+/**
+ * Copyright 2019 Duke University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package edu.duke.oit.idms.idp.authn.webauthn.benchmark;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.yubico.webauthn.data.ByteArray;
+
+/**
+ * A user with a software authenticator going through the same requests the registration page and login form
+ * make: type=start and type=finish to register, then type=authstart and the webauthnformdata post to log in.
+ *
+ * @author shilen
+ */
+public class SimulatedUser {
+
+  private static final ObjectMapper jsonMapper = new ObjectMapper();
+
+  private final WebAuthnEndpoints endpoints;
+
+  private final String netid;
+
+  private final SoftwareAuthenticator authenticator;
+
+  /**
+   * @param endpoints
+   * @param netid
+   * @param authenticator
+   */
+  public SimulatedUser(WebAuthnEndpoints endpoints, String netid, SoftwareAuthenticator authenticator) {
+    this.endpoints = endpoints;
+    this.netid = netid;
+    this.authenticator = authenticator;
+  }
+
+  /**
+   * @return netid
+   */
+  public String getNetid() {
+    return netid;
+  }
+
+  /**
+   * register the authenticator
+   */
+  public void register() {
+    Map<String, String> parameters = new HashMap<String, String>();
+    parameters.put("type", "start");
+    parameters.put("username", netid);
+    parameters.put("credentialNickname", authenticator.getAlgorithm() + " key");
+    JsonNode request = internal_request(endpoints.registration(parameters, null));
+
+    JsonNode options = request.get("publicKeyCredentialCreationOptions");
+    String body = authenticator.register(internal_bytes(request.get("requestId")), internal_bytes(options.get("challenge")), internal_bytes(options.get("user").get("id")));
+
+    parameters = new HashMap<String, String>();
+    parameters.put("type", "finish");
+    internal_request(endpoints.registration(parameters, body));
+  }
+
+  /**
+   * @return webauthnformdata the login form would post, for a fresh authstart
+   */
+  public String startLogin() {
+    Map<String, String> parameters = new HashMap<String, String>();
+    parameters.put("type", "authstart");
+    parameters.put("username", netid);
+    JsonNode request = internal_request(endpoints.registration(parameters, null));
+
+    return authenticator.assertion(internal_bytes(request.get("requestId")), internal_bytes(request.get("publicKeyCredentialRequestOptions").get("challenge")));
+  }
+
+  /**
+   * @param webauthnFormData from {@link #startLogin()}
+   */
+  public void finishLogin(String webauthnFormData) {
+    endpoints.login(netid, webauthnFormData);
+  }
+
+  /**
+   * a full login
+   */
+  public void login() {
+    finishLogin(startLogin());
+  }
+
+  private static JsonNode internal_request(String response) {
+    try {
+      JsonNode json = jsonMapper.readTree(response);
+      if (!json.path("success").asBoolean()) {
+        throw new RuntimeException("Request failed: " + response);
+      }
+
+      return json.get("request");
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new RuntimeException("Unable to parse response: " + response, e);
+    }
+  }
+
+  private static ByteArray internal_bytes(JsonNode base64Url) {
+    try {
+      return ByteArray.fromBase64Url(base64Url.asText());
+    } catch (Exception e) {
+      throw new RuntimeException("Not base64url: " + base64Url, e);
+    }
+  }
+}
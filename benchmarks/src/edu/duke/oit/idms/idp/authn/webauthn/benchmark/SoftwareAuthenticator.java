@@ -0,0 +1,302 @@
+/**
+ * Copyright 2019 Duke University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package edu.duke.oit.idms.idp.authn.webauthn.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.interfaces.ECPublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Arrays;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.upokecenter.cbor.CBORObject;
+import com.yubico.webauthn.data.ByteArray;
+
+/**
+ * A software authenticator with one credential, making the responses a browser would post: a "none" attestation
+ * for registration and a signed assertion, with user presence and user verification set.  Not thread safe,
+ * give each simulated user their own.
+ *
+ * @author shilen
+ */
+public class SoftwareAuthenticator {
+
+  /**
+   * key types, with their COSE algorithm ids
+   */
+  public enum Algorithm {
+
+    /** P-256 ECDSA */
+    ES256(-7),
+
+    /** RSA PKCS#1 v1.5 */
+    RS256(-257),
+
+    /** Ed25519 */
+    EdDSA(-8);
+
+    private final int coseId;
+
+    private Algorithm(int coseId) {
+      this.coseId = coseId;
+    }
+
+    /**
+     * @return COSE algorithm id
+     */
+    public int getCoseId() {
+      return coseId;
+    }
+  }
+
+  private static final SecureRandom random = new SecureRandom();
+
+  private static final ObjectMapper jsonMapper = new ObjectMapper();
+
+  private static final byte FLAG_UP = 0x01;
+
+  private static final byte FLAG_UV = 0x04;
+
+  private static final byte FLAG_AT = 0x40;
+
+  private final Algorithm algorithm;
+
+  private final String rpId;
+
+  private final String origin;
+
+  private final KeyPair keyPair;
+
+  private final ByteArray credentialId;
+
+  private final ByteArray publicKeyCose;
+
+  private ByteArray userHandle = null;
+
+  private long signatureCount = 0;
+
+  /**
+   * @param algorithm
+   * @param rpId relying party id the credential is scoped to
+   * @param origin origin the browser would report
+   */
+  public SoftwareAuthenticator(Algorithm algorithm, String rpId, String origin) {
+    this.algorithm = algorithm;
+    this.rpId = rpId;
+    this.origin = origin;
+
+    try {
+      KeyPairGenerator generator;
+      if (algorithm == Algorithm.ES256) {
+        generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp256r1"));
+      } else if (algorithm == Algorithm.RS256) {
+        generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+      } else {
+        generator = KeyPairGenerator.getInstance("Ed25519");
+      }
+
+      keyPair = generator.generateKeyPair();
+    } catch (Exception e) {
+      throw new RuntimeException("Unable to generate " + algorithm + " key", e);
+    }
+
+    byte[] credentialIdBytes = new byte[64];
+    random.nextBytes(credentialIdBytes);
+    credentialId = new ByteArray(credentialIdBytes);
+    publicKeyCose = new ByteArray(internal_encodePublicKey());
+  }
+
+  /**
+   * @return credential id
+   */
+  public ByteArray getCredentialId() {
+    return credentialId;
+  }
+
+  /**
+   * @return public key, COSE encoded as storage keeps it
+   */
+  public ByteArray getPublicKeyCose() {
+    return publicKeyCose;
+  }
+
+  /**
+   * @return user handle given at registration, or null
+   */
+  public ByteArray getUserHandle() {
+    return userHandle;
+  }
+
+  /**
+   * @param userHandle set when registration was done some other way (e.g. straight into storage)
+   */
+  public void setUserHandle(ByteArray userHandle) {
+    this.userHandle = userHandle;
+  }
+
+  /**
+   * @return algorithm
+   */
+  public Algorithm getAlgorithm() {
+    return algorithm;
+  }
+
+  /**
+   * @param requestId from the type=start response
+   * @param challenge from the type=start response
+   * @param userHandle user.id from the type=start response
+   * @return type=finish body
+   */
+  public String register(ByteArray requestId, ByteArray challenge, ByteArray userHandle) {
+    this.userHandle = userHandle;
+
+    byte[] clientDataJson = internal_clientDataJson("webauthn.create", challenge);
+
+    ByteArrayOutputStream attestedCredentialData = new ByteArrayOutputStream();
+    attestedCredentialData.write(new byte[16], 0, 16);
+    attestedCredentialData.write(credentialId.size() >> 8);
+    attestedCredentialData.write(credentialId.size());
+    attestedCredentialData.write(credentialId.getBytes(), 0, credentialId.size());
+    attestedCredentialData.write(publicKeyCose.getBytes(), 0, publicKeyCose.size());
+
+    byte[] authenticatorData = internal_authenticatorData((byte)(FLAG_UP | FLAG_UV | FLAG_AT), attestedCredentialData.toByteArray());
+
+    CBORObject attestationObject = CBORObject.NewMap()
+        .Add("fmt", "none")
+        .Add("attStmt", CBORObject.NewMap())
+        .Add("authData", authenticatorData);
+
+    ObjectNode response = jsonMapper.createObjectNode()
+        .put("attestationObject", new ByteArray(attestationObject.EncodeToBytes()).getBase64Url())
+        .put("clientDataJSON", new ByteArray(clientDataJson).getBase64Url());
+
+    return internal_responseJson(requestId, response);
+  }
+
+  /**
+   * @param requestId from the type=authstart response
+   * @param challenge from the type=authstart response
+   * @return webauthnformdata for the login form
+   */
+  public String assertion(ByteArray requestId, ByteArray challenge) {
+    byte[] clientDataJson = internal_clientDataJson("webauthn.get", challenge);
+    byte[] authenticatorData = internal_authenticatorData((byte)(FLAG_UP | FLAG_UV), new byte[0]);
+
+    ObjectNode response = jsonMapper.createObjectNode()
+        .put("authenticatorData", new ByteArray(authenticatorData).getBase64Url())
+        .put("clientDataJSON", new ByteArray(clientDataJson).getBase64Url())
+        .put("signature", new ByteArray(internal_sign(authenticatorData, clientDataJson)).getBase64Url())
+        .put("userHandle", userHandle == null ? "" : userHandle.getBase64Url());
+
+    return internal_responseJson(requestId, response);
+  }
+
+  private String internal_responseJson(ByteArray requestId, ObjectNode response) {
+    ObjectNode credential = jsonMapper.createObjectNode()
+        .put("id", credentialId.getBase64Url())
+        .put("type", "public-key");
+    credential.set("response", response);
+    credential.set("clientExtensionResults", jsonMapper.createObjectNode());
+
+    ObjectNode body = jsonMapper.createObjectNode().put("requestId", requestId.getBase64Url());
+    body.set("credential", credential);
+    return body.toString();
+  }
+
+  private byte[] internal_clientDataJson(String type, ByteArray challenge) {
+    ObjectNode clientData = jsonMapper.createObjectNode()
+        .put("type", type)
+        .put("challenge", challenge.getBase64Url())
+        .put("origin", origin);
+    return clientData.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  private byte[] internal_authenticatorData(byte flags, byte[] attestedCredentialData) {
+    ByteBuffer buffer = ByteBuffer.allocate(32 + 1 + 4 + attestedCredentialData.length);
+    buffer.put(internal_sha256(rpId.getBytes(StandardCharsets.UTF_8)));
+    buffer.put(flags);
+    buffer.putInt((int)++signatureCount);
+    buffer.put(attestedCredentialData);
+    return buffer.array();
+  }
+
+  private byte[] internal_sign(byte[] authenticatorData, byte[] clientDataJson) {
+    String signatureAlgorithm = algorithm == Algorithm.ES256 ? "SHA256withECDSA" : algorithm == Algorithm.RS256 ? "SHA256withRSA" : "Ed25519";
+    try {
+      Signature signature = Signature.getInstance(signatureAlgorithm);
+      signature.initSign(keyPair.getPrivate());
+      signature.update(authenticatorData);
+      signature.update(internal_sha256(clientDataJson));
+      return signature.sign();
+    } catch (Exception e) {
+      throw new RuntimeException("Unable to sign with " + signatureAlgorithm, e);
+    }
+  }
+
+  private byte[] internal_encodePublicKey() {
+    CBORObject key = CBORObject.NewMap();
+    if (algorithm == Algorithm.ES256) {
+      ECPublicKey publicKey = (ECPublicKey)keyPair.getPublic();
+      key.Add(1, 2).Add(3, algorithm.getCoseId()).Add(-1, 1)
+          .Add(-2, internal_unsigned(publicKey.getW().getAffineX(), 32))
+          .Add(-3, internal_unsigned(publicKey.getW().getAffineY(), 32));
+    } else if (algorithm == Algorithm.RS256) {
+      RSAPublicKey publicKey = (RSAPublicKey)keyPair.getPublic();
+      key.Add(1, 3).Add(3, algorithm.getCoseId())
+          .Add(-1, internal_unsigned(publicKey.getModulus(), (publicKey.getModulus().bitLength() + 7) / 8))
+          .Add(-2, internal_unsigned(publicKey.getPublicExponent(), (publicKey.getPublicExponent().bitLength() + 7) / 8));
+    } else {
+      // the raw key is the last 32 bytes of the X.509 encoding
+      byte[] encoded = keyPair.getPublic().getEncoded();
+      key.Add(1, 1).Add(3, algorithm.getCoseId()).Add(-1, 6)
+          .Add(-2, Arrays.copyOfRange(encoded, encoded.length - 32, encoded.length));
+    }
+
+    return key.EncodeToBytes();
+  }
+
+  private static byte[] internal_unsigned(BigInteger value, int length) {
+    byte[] bytes = value.toByteArray();
+    if (bytes.length == length) {
+      return bytes;
+    }
+
+    byte[] result = new byte[length];
+    int copy = Math.min(bytes.length, length);
+    System.arraycopy(bytes, bytes.length - copy, result, length - copy, copy);
+    return result;
+  }
+
+  private static byte[] internal_sha256(byte[] data) {
+    try {
+      return MessageDigest.getInstance("SHA-256").digest(data);
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
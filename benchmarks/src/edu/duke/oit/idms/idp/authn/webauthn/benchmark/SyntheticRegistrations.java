@@ -0,0 +1,123 @@
+/**
+ * Copyright 2019 Duke University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package edu.duke.oit.idms.idp.authn.webauthn.benchmark;
+
+import java.util.Date;
+import java.util.SplittableRandom;
+
+import com.yubico.webauthn.data.ByteArray;
+
+import edu.duke.oit.idms.idp.authn.webauthn.OffHeapCredentialRepository;
+import edu.duke.oit.idms.idp.authn.webauthn.RegistrationData;
+import edu.duke.oit.idms.idp.authn.webauthn.RegistrationStorage;
+import edu.duke.oit.idms.idp.authn.webauthn.RegistrationStore;
+import edu.duke.oit.idms.idp.authn.webauthn.TieredCredentialRepository;
+
+/**
+ * Deterministic fake registrations for filling storage.  Registration i belongs to user i / CREDENTIALS_PER_USER,
+ * and everything about it can be rebuilt from i, so benchmarks can pick keys without keeping millions of them.
+ *
+ * @author shilen
+ */
+public class SyntheticRegistrations {
+
+  /** credentials each user has */
+  public static final int CREDENTIALS_PER_USER = 2;
+
+  private static final Date REGISTRATION_TIME = new Date(1577836800000L);
+
+  /**
+   * @param i
+   * @return netid of the user owning registration i
+   */
+  public static String netid(int i) {
+    return "user" + (i / CREDENTIALS_PER_USER);
+  }
+
+  /**
+   * @param i
+   * @return user handle (64 bytes, like the registration servlet makes) of the user owning registration i
+   */
+  public static ByteArray userHandle(int i) {
+    return new ByteArray(internal_bytes(0x5EED0000L + (i / CREDENTIALS_PER_USER), 64));
+  }
+
+  /**
+   * @param i
+   * @return credential id of registration i (64 bytes, a typical security key credential id)
+   */
+  public static ByteArray credentialId(int i) {
+    return new ByteArray(internal_bytes(i, 64));
+  }
+
+  /**
+   * @param i
+   * @return registration i
+   */
+  public static RegistrationData registration(int i) {
+    // not a real key, storage never parses it
+    return RegistrationData.builder()
+        .credentialId(credentialId(i))
+        .credentialTypeString("PUBLIC_KEY")
+        .publicKeyCose(new ByteArray(internal_bytes(-1L - i, 77)))
+        .userHandle(userHandle(i))
+        .netid(netid(i))
+        .nickname("key " + i)
+        .attestationTypeString("BASIC")
+        .signatureCount(0)
+        .registrationTime(REGISTRATION_TIME)
+        .build();
+  }
+
+  /**
+   * Registrations are added the way the stores load them from their journal, {@link RegistrationStore} only takes
+   * them from a finished ceremony.
+   *
+   * @param store the configured store, see WebAuthnEngine
+   * @param count registrations 0 to count - 1
+   */
+  public static void addTo(RegistrationStore store, int count) {
+    if (store instanceof TieredCredentialRepository) {
+      // the hot tier fills as the benchmark runs
+      addTo(((TieredCredentialRepository)store).getColdStore(), count);
+    } else if (store instanceof RegistrationStorage) {
+      for (int i = 0; i < count; i++) {
+        ((RegistrationStorage)store).addRegistration(registration(i));
+      }
+    } else if (store instanceof OffHeapCredentialRepository) {
+      for (int i = 0; i < count; i++) {
+        ((OffHeapCredentialRepository)store).addRegistration(registration(i));
+      }
+    } else {
+      throw new RuntimeException("Unable to add synthetic registrations to " + store.getClass().getName());
+    }
+  }
+
+  private static byte[] internal_bytes(long seed, int length) {
+    byte[] bytes = new byte[length];
+    SplittableRandom random = new SplittableRandom(seed);
+    for (int i = 0; i < length; i += 8) {
+      long value = random.nextLong();
+      for (int j = i; j < Math.min(length, i + 8); j++) {
+        bytes[j] = (byte)value;
+        value >>>= 8;
+      }
+    }
+
+    return bytes;
+  }
+}
@@ -0,0 +1,46 @@
+/**
+ * Copyright 2019 Duke University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package edu.duke.oit.idms.idp.authn.webauthn.benchmark;
+
+import java.util.Map;
+
+/**
+ * How a {@link SimulatedUser} reaches the IdP: in process or over HTTP.
+ *
+ * @author shilen
+ */
+public interface WebAuthnEndpoints {
+
+  /**
+   * POST to the registration servlet
+   * 
+   * @param parameters
+   * @param body request body, may be null
+   * @return response body
+   * @throws RuntimeException if the response isn't a 200
+   */
+  String registration(Map<String, String> parameters, String body);
+
+  /**
+   * post the login form
+   * 
+   * @param netid j_username
+   * @param webauthnFormData
+   * @throws RuntimeException if the user isn't authenticated
+   */
+  void login(String netid, String webauthnFormData);
+}
@@ -0,0 +1,1134 @@
+/**
+ * Copyright 2019 Duke University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package edu.duke.oit.idms.idp.authn.webauthn;
+
+import com.yubico.webauthn.AssertionResult;
+import com.yubico.webauthn.RegisteredCredential;
+import com.yubico.webauthn.RegistrationResult;
+import com.yubico.webauthn.data.AttestationType;
+import com.yubico.webauthn.data.AuthenticatorAttestationResponse;
+import com.yubico.webauthn.data.ByteArray;
+import com.yubico.webauthn.data.PublicKeyCredentialDescriptor;
+import com.yubico.webauthn.data.PublicKeyCredentialType;
+import com.yubico.webauthn.data.UserIdentity;
+import com.yubico.webauthn.data.exception.Base64UrlException;
+
+import edu.duke.oit.idms.idp.authn.dbconn.DatabaseConnectionFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.StringUtils;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.base.Function;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * Database registration storage.  Reads go through caches keyed by credential id, user handle and netid
+ * so the database is only hit on a miss.  Entries are invalidated when this node adds a registration or
+ * updates a signature count; changes made by other nodes are picked up when the entry is refreshed, so keep
+ * idp.WebAuthn.storage.cache.ttlSeconds short in a cluster.  An entry read after ttlSeconds is reloaded in the
+ * background (the read gets the old value) and one not read for twice that is dropped, so entries written at
+ * the same time, e.g. by the preload, don't all go back to the database at once.
+ * 
+ * At startup the caches are preloaded from webauthn_registrations_v, see {@link #isPreloaded()}.
+ * 
+ * @author shilen
+ */
+public class DatabaseRegistrationStorage implements RegistrationStore {
+
+  private Logger logger = LoggerFactory.getLogger(DatabaseRegistrationStorage.class);
+
+  /** registrations by credential id */
+  private final LoadingCache<ByteArray, Collection<RegistrationData>> registrationsByCredentialIdCache;
+
+  /** user handle and registrations by netid */
+  private final LoadingCache<String, UserRegistrations> userRegistrationsCache;
+
+  /** netid by user handle */
+  private final LoadingCache<ByteArray, Optional<String>> usernameByUserHandleCache;
+  
+  /** signature counts are written behind */
+  private final SignatureCountWriter signatureCountWriter;
+
+  /**
+   * @return instance
+   */
+  public synchronized static DatabaseRegistrationStorage getInstance() {
+    if (instance == null) {
+      try {
+        instance = new DatabaseRegistrationStorage();
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    return instance;
+  }
+  
+  private DatabaseRegistrationStorage() {
+    WebAuthnProperties properties = WebAuthnProperties.getInstance();
+    long cacheTtlSeconds = properties.getPropertyLong("idp.WebAuthn.storage.cache.ttlSeconds", false, 60);
+    long cacheMaxSize = properties.getPropertyLong("idp.WebAuthn.storage.cache.maxSize", false, 10000);
+    int cacheRefreshThreads = properties.getPropertyInt("idp.WebAuthn.storage.cache.refreshThreads", false, 2);
+    
+    ExecutorService cacheRefreshExecutor = Executors.newFixedThreadPool(cacheRefreshThreads, runnable -> {
+      Thread thread = new Thread(runnable, "webauthn-cache-refresh");
+      thread.setDaemon(true);
+      return thread;
+    });
+    
+    registrationsByCredentialIdCache = internal_buildCache(cacheTtlSeconds, cacheMaxSize, cacheRefreshExecutor, this::internal_getRegistrationsByCredentialIdFromDatabase);
+    userRegistrationsCache = internal_buildCache(cacheTtlSeconds, cacheMaxSize, cacheRefreshExecutor, this::internal_getUserRegistrationsFromDatabase);
+    usernameByUserHandleCache = internal_buildCache(cacheTtlSeconds, cacheMaxSize, cacheRefreshExecutor, this::internal_getUsernameForUserHandleFromDatabase);
+    
+    logger.info("Registration caches configured with ttlSeconds=" + cacheTtlSeconds + ", maxSize=" + cacheMaxSize + ", refreshThreads=" + cacheRefreshThreads);
+    
+    int counterBatchSize = properties.getPropertyInt("idp.WebAuthn.storage.signatureCount.batchSize", false, 100);
+    long counterFlushMillis = properties.getPropertyLong("idp.WebAuthn.storage.signatureCount.flushMillis", false, 2000);
+    
+    long lastAuthnIntervalSeconds = properties.getPropertyLong("idp.WebAuthn.storage.lastAuthn.intervalSeconds", false, 3600);
+    
+    // remember counts until the database and any cached reads of it have caught up
+    signatureCountWriter = new SignatureCountWriter(counterBatchSize, counterFlushMillis, Math.max(600000L, 2 * (counterFlushMillis + 1000L * cacheTtlSeconds)), 1000L * lastAuthnIntervalSeconds);
+    
+    registeredUsersPollSeconds = properties.getPropertyLong("idp.WebAuthn.storage.registeredUsers.pollSeconds", false, 60);
+    registeredUsersFullReconcileMillis = 1000L * properties.getPropertyLong("idp.WebAuthn.storage.registeredUsers.fullReconcileSeconds", false, 3600);
+    registeredUsersDeltaWindow = properties.getPropertyLong("idp.WebAuthn.storage.registeredUsers.deltaWindow", false, 1000);
+    registeredUsersFalsePositiveRate = Double.parseDouble(properties.getProperty("idp.WebAuthn.storage.registeredUsers.falsePositiveRate", false, "0.01"));
+    
+    ScheduledExecutorService registeredUsersExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "webauthn-registered-users");
+      thread.setDaemon(true);
+      return thread;
+    });
+    
+    registeredUsersExecutor.scheduleWithFixedDelay(() -> internal_syncRegisteredUsers(), 0, registeredUsersPollSeconds, TimeUnit.SECONDS);
+    
+    WebAuthnMetrics.getMetricRegistry().gauge(MetricRegistry.name(WebAuthnMetrics.PREFIX, "storage", "preload", "ready"), () -> (Gauge<Integer>)() -> preloaded ? 1 : 0);
+    
+    int preloadPartitions = properties.getPropertyInt("idp.WebAuthn.storage.preload.partitions", false, 4);
+    int preloadFetchSize = properties.getPropertyInt("idp.WebAuthn.storage.preload.fetchSize", false, 5000);
+    long preloadTimeoutSeconds = properties.getPropertyLong("idp.WebAuthn.storage.preload.timeoutSeconds", false, 120);
+    internal_preload(preloadPartitions, preloadFetchSize, preloadTimeoutSeconds, cacheMaxSize);
+  }
+  
+  /**
+   * @return true once the startup preload has finished (or failed, or is turned off or skipped), published as
+   * the storage.preload.ready gauge
+   */
+  public boolean isPreloaded() {
+    return preloaded;
+  }
+  
+  /**
+   * Fills the caches from webauthn_registrations_v so a new node doesn't answer its first logins from the database
+   * one user at a time.  Each partition (by ora_hash of the user handle, so a user's rows are all in one) is read
+   * on its own pooled connection and indexed by its own thread; the caches are filled once every partition is
+   * done.  This runs from the constructor, i.e. when the registration servlet starts, which holds up the IdP
+   * starting until the preload is done or timeoutSeconds have passed, after which it carries on in the background.
+   * It's skipped if there are more users than maxSize, and preloaded entries are refreshed like any other.
+   * Nothing waits for {@link #isPreloaded()} after timeoutSeconds, point a load balancer readiness check at the
+   * storage.preload.ready gauge (through the IdP's metrics admin flow) to keep traffic off the node until then.
+   * 
+   * @param partitions 0 to turn the preload off
+   * @param fetchSize
+   * @param timeoutSeconds
+   * @param maxUsers
+   */
+  private void internal_preload(int partitions, int fetchSize, long timeoutSeconds, long maxUsers) {
+    if (partitions <= 0) {
+      preloaded = true;
+      return;
+    }
+    
+    preloadInvalidations = ConcurrentHashMap.newKeySet();
+    
+    ExecutorService executor = Executors.newFixedThreadPool(partitions + 1, runnable -> {
+      Thread thread = new Thread(runnable, "webauthn-preload");
+      thread.setDaemon(true);
+      return thread;
+    });
+    
+    Future<?> done = executor.submit(() -> {
+      long start = System.currentTimeMillis();
+      try (Timer.Context timer = WebAuthnMetrics.time("storage.preload")) {
+        // a cache that can't hold everyone would keep an arbitrary maxUsers of them, not the ones about to log in
+        long registeredUserCount;
+        Connection conn = DatabaseConnectionFactory.getShibbolethDatabaseConnection();
+        try {
+          registeredUserCount = internal_countRegisteredUsers(conn);
+        } finally {
+          conn.close();
+        }
+        
+        if (registeredUserCount > maxUsers) {
+          preloadInvalidations = null;
+          logger.warn("Not preloading registrations, " + registeredUserCount + " users don't fit in the cache, raise idp.WebAuthn.storage.cache.maxSize above that to preload");
+          return;
+        }
+        
+        List<Future<PreloadPartition>> futures = new ArrayList<Future<PreloadPartition>>();
+        for (int i = 0; i < partitions; i++) {
+          final int partition = i;
+          futures.add(executor.submit(() -> internal_preloadPartition(partitions, partition, fetchSize)));
+        }
+        
+        Map<String, UserRegistrations> users = new HashMap<String, UserRegistrations>();
+        Map<ByteArray, Collection<RegistrationData>> registrationsByCredentialId = new HashMap<ByteArray, Collection<RegistrationData>>();
+        int rows = 0;
+        for (Future<PreloadPartition> future : futures) {
+          PreloadPartition result = future.get();
+          users.putAll(result.users);
+          for (Map.Entry<ByteArray, Collection<RegistrationData>> entry : result.registrationsByCredentialId.entrySet()) {
+            // a credential id registered by users in different partitions
+            registrationsByCredentialId.merge(entry.getKey(), entry.getValue(), (a, b) -> {
+              Collection<RegistrationData> merged = new ArrayList<RegistrationData>(a);
+              merged.addAll(b);
+              return Collections.unmodifiableCollection(merged);
+            });
+          }
+          
+          rows += result.rows;
+        }
+        
+        if (users.size() > maxUsers) {
+          // registered since the count
+          preloadInvalidations = null;
+          logger.warn("Not preloading registrations, read " + users.size() + " users but the cache only holds " + maxUsers + ", raise idp.WebAuthn.storage.cache.maxSize to preload");
+          return;
+        }
+        
+        internal_publishPreload(users, registrationsByCredentialId);
+        
+        logger.info("Preloaded registrations, partitions=" + partitions + ", rows=" + rows + ", users=" + users.size() + ", credentialIds=" + registrationsByCredentialId.size() + ", millis=" + (System.currentTimeMillis() - start));
+      } catch (Throwable t) {
+        // the caches fill on demand instead
+        preloadInvalidations = null;
+        logger.error("Error preloading registrations", t);
+      } finally {
+        preloaded = true;
+        executor.shutdown();
+      }
+    });
+    
+    try {
+      done.get(timeoutSeconds, TimeUnit.SECONDS);
+    } catch (TimeoutException e) {
+      logger.warn("Registration preload still running after " + timeoutSeconds + " seconds, continuing in the background");
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      // logged by the task
+    }
+  }
+  
+  private PreloadPartition internal_preloadPartition(int partitions, int partition, int fetchSize) throws SQLException, Base64UrlException {
+    Connection conn = null;
+    PreparedStatement ps = null;
+    ResultSet rs = null;
+    
+    try {
+      conn = DatabaseConnectionFactory.getShibbolethDatabaseConnection();
+      
+      String sql = "select netid, user_handle, credential_type, credential_id, public_key_cose, signature_count, attestation_type, registration_time, nickname from webauthn_registrations_v where ora_hash(user_handle, ?) = ?";
+      ps = conn.prepareStatement(sql);
+      ps.setInt(1, partitions - 1);
+      ps.setInt(2, partition);
+      ps.setFetchSize(fetchSize);
+      rs = ps.executeQuery();
+      
+      Map<String, List<RegistrationData>> registrationsByUsername = new HashMap<String, List<RegistrationData>>();
+      Map<ByteArray, List<RegistrationData>> registrationsByCredentialId = new HashMap<ByteArray, List<RegistrationData>>();
+      int rows = 0;
+      while (rs.next()) {
+        RegistrationData registration = internal_getRegistrationFromResultSet(rs);
+        registrationsByUsername.computeIfAbsent(registration.getNetid(), k -> new ArrayList<RegistrationData>()).add(registration);
+        registrationsByCredentialId.computeIfAbsent(registration.getCredentialId(), k -> new ArrayList<RegistrationData>(1)).add(registration);
+        rows++;
+      }
+      
+      PreloadPartition result = new PreloadPartition(rows);
+      for (Map.Entry<String, List<RegistrationData>> entry : registrationsByUsername.entrySet()) {
+        result.users.put(entry.getKey(), new UserRegistrations(entry.getKey(), entry.getValue().get(0).getUserHandle(), entry.getValue()));
+      }
+      
+      for (Map.Entry<ByteArray, List<RegistrationData>> entry : registrationsByCredentialId.entrySet()) {
+        result.registrationsByCredentialId.put(entry.getKey(), Collections.unmodifiableCollection(entry.getValue()));
+      }
+      
+      logger.debug("Preloaded partition " + partition + " of " + partitions + ", rows=" + rows);
+      return result;
+    } finally {
+      if (rs != null) {
+        try {
+          rs.close();
+        } catch (SQLException e) {
+          // ignore
+        }
+      }
+
+      if (ps != null) {
+        try {
+          ps.close();
+        } catch (SQLException e) {
+          // ignore
+        }
+      }
+      
+      if (conn != null) {
+        try {
+          conn.close();
+        } catch (SQLException e) {
+          // ignore
+        }
+      }
+    }
+  }
+  
+  /**
+   * Puts everything in the caches, then drops anything this node changed while the preload was reading since
+   * the preload may have read it before the change.
+   */
+  private void internal_publishPreload(Map<String, UserRegistrations> users, Map<ByteArray, Collection<RegistrationData>> registrationsByCredentialId) {
+    for (UserRegistrations user : users.values()) {
+      usernameByUserHandleCache.put(user.getUserHandle().get(), Optional.of(user.getNetid()));
+    }
+    
+    userRegistrationsCache.putAll(users);
+    registrationsByCredentialIdCache.putAll(registrationsByCredentialId);
+    
+    Set<Object> invalidations = preloadInvalidations;
+    preloadInvalidations = null;
+    for (Object key : invalidations) {
+      userRegistrationsCache.invalidate(key);
+      usernameByUserHandleCache.invalidate(key);
+      registrationsByCredentialIdCache.invalidate(key);
+    }
+  }
+  
+  private static final class PreloadPartition {
+    
+    private final Map<String, UserRegistrations> users = new HashMap<String, UserRegistrations>();
+    
+    private final Map<ByteArray, Collection<RegistrationData>> registrationsByCredentialId = new HashMap<ByteArray, Collection<RegistrationData>>();
+    
+    private final int rows;
+    
+    private PreloadPartition(int rows) {
+      this.rows = rows;
+    }
+  }
+  
+  /**
+   * Keeps registeredUsers in sync with webauthn_users.  Normally only rows with a change_seq above the
+   * high watermark less deltaWindow are read, sequence values are handed out before commit so a row can
+   * show up below the watermark.  A full reconcile runs at startup and every fullReconcileSeconds to pick up
+   * deleted users and anything older than the window.
+   */
+  private void internal_syncRegisteredUsers() {
+    Connection conn = null;
+    
+    try {
+      conn = DatabaseConnectionFactory.getShibbolethDatabaseConnection();
+      
+      long now = System.currentTimeMillis();
+      if (registeredUsersHighWatermark < 0 || now - registeredUsersLastFullReconcile >= registeredUsersFullReconcileMillis) {
+        internal_fullReconcileRegisteredUsers(conn);
+        registeredUsersLastFullReconcile = now;
+      } else {
+        internal_deltaSyncRegisteredUsers(conn);
+      }
+      
+      logger.info("Registration cache stats: " + getCacheStats());
+    } catch (Throwable t) {
+      // don't let an exception cancel the scheduled task
+      logger.error("Error looking for registered users", t);
+    } finally {
+      if (conn != null) {
+        try {
+          conn.close();
+        } catch (SQLException e) {
+          // ignore
+        }
+      }
+    }
+  }
+  
+  private void internal_fullReconcileRegisteredUsers(Connection conn) throws SQLException {
+    PreparedStatement ps = null;
+    ResultSet rs = null;
+    
+    try {
+      // users this node adds from here on may not be in the query below, they're replayed into the new index
+      Set<String> localAdds = ConcurrentHashMap.newKeySet();
+      registeredUsersLocalAdds = localAdds;
+      
+      long expectedCount = internal_countRegisteredUsers(conn);
+      
+      String sql = "select netid, change_seq from webauthn_users";
+      ps = conn.prepareStatement(sql);
+      ps.setFetchSize(1000);
+      rs = ps.executeQuery();
+      
+      // size for some growth until the next reconcile, users added in between go in the exact set
+      RegisteredUsersIndex.Builder builder = RegisteredUsersIndex.builder(expectedCount + expectedCount / 10 + 1000, registeredUsersFalsePositiveRate);
+      long highWatermark = 0;
+      while (rs.next()) {
+        builder.add(rs.getString("netid"));
+        highWatermark = Math.max(highWatermark, rs.getLong("change_seq"));
+      }
+      
+      RegisteredUsersIndex index = builder.build();
+      registeredUsers = index;
+      registeredUsersHighWatermark = highWatermark;
+      
+      // after the swap, an add that misses this loop has already seen the new index
+      for (String netid : localAdds) {
+        index.add(netid);
+      }
+      
+      logger.info("Full reconcile of registered users, count=" + index.getCount() + ", highWatermark=" + highWatermark + ", expectedFalsePositiveRate=" + String.format("%.4f", index.getExpectedFalsePositiveRate()));
+    } finally {
+      if (rs != null) {
+        try {
+          rs.close();
+        } catch (SQLException e) {
+          // ignore
+        }
+      }
+
+      if (ps != null) {
+        try {
+          ps.close();
+        } catch (SQLException e) {
+          // ignore
+        }
+      }
+    }
+  }
+  
+  private long internal_countRegisteredUsers(Connection conn) throws SQLException {
+    PreparedStatement ps = null;
+    ResultSet rs = null;
+    
+    try {
+      String sql = "select count(*) from webauthn_users";
+      ps = conn.prepareStatement(sql);
+      rs = ps.executeQuery();
+      rs.next();
+      return rs.getLong(1);
+    } finally {
+      if (rs != null) {
+        try {
+          rs.close();
+        } catch (SQLException e) {
+          // ignore
+        }
+      }
+
+      if (ps != null) {
+        try {
+          ps.close();
+        } catch (SQLException e) {
+          // ignore
+        }
+      }
+    }
+  }
+  
+  private void internal_deltaSyncRegisteredUsers(Connection conn) throws SQLException {
+    PreparedStatement ps = null;
+    ResultSet rs = null;
+    
+    try {
+      String sql = "select netid, change_seq from webauthn_users where change_seq > ?";
+      ps = conn.prepareStatement(sql);
+      ps.setLong(1, registeredUsersHighWatermark - registeredUsersDeltaWindow);
+      rs = ps.executeQuery();
+      
+      long highWatermark = registeredUsersHighWatermark;
+      int count = 0;
+      while (rs.next()) {
+        String netid = rs.getString("netid");
+        long changeSeq = rs.getLong("change_seq");
+        registeredUsers.add(netid);
+        highWatermark = Math.max(highWatermark, changeSeq);
+        
+        if (changeSeq > registeredUsersHighWatermark) {
+          count++;
+          logger.debug("Registered user added or changed, netid=" + netid);
+        }
+      }
+      
+      registeredUsersHighWatermark = highWatermark;
+      
+      if (count > 0) {
+        logger.info("Delta sync of registered users, changed=" + count + ", addedSinceReconcile=" + registeredUsers.getAddedCount() + ", highWatermark=" + highWatermark);
+      }
+    } finally {
+      if (rs != null) {
+        try {
+          rs.close();
+        } catch (SQLException e) {
+          // ignore
+        }
+      }
+
+      if (ps != null) {
+        try {
+          ps.close();
+        } catch (SQLException e) {
+          // ignore
+        }
+      }
+    }
+  }
+  
+  private static DatabaseRegistrationStorage instance = null;
+  
+  private static <K, V> LoadingCache<K, V> internal_buildCache(long ttlSeconds, long maxSize, ExecutorService refreshExecutor, Function<K, V> loader) {
+    return CacheBuilder.newBuilder()
+        .refreshAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+        .expireAfterWrite(2 * ttlSeconds, TimeUnit.SECONDS)
+        .maximumSize(maxSize)
+        .recordStats()
+        .build(CacheLoader.asyncReloading(CacheLoader.from(loader), refreshExecutor));
+  }
+  
+  private static <K, V> V internal_getCached(LoadingCache<K, V> cache, K key) {
+    try {
+      return cache.get(key);
+    } catch (ExecutionException | UncheckedExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException)e.getCause();
+      }
+      
+      throw new RuntimeException(e.getCause());
+    }
+  }
+  
+  /**
+   * @return hit/miss stats for each cache
+   */
+  public String getCacheStats() {
+    return "registrationsByCredentialId=" + internal_formatStats(registrationsByCredentialIdCache)
+        + ", userRegistrations=" + internal_formatStats(userRegistrationsCache)
+        + ", usernameByUserHandle=" + internal_formatStats(usernameByUserHandleCache);
+  }
+  
+  private static String internal_formatStats(Cache<?, ?> cache) {
+    CacheStats stats = cache.stats();
+    return "[size=" + cache.size() + ", hits=" + stats.hitCount() + ", misses=" + stats.missCount() + ", hitRate=" + String.format("%.3f", stats.hitRate()) + ", evictions=" + stats.evictionCount() + "]";
+  }
+  
+  private void internal_invalidate(String username, ByteArray userHandle, ByteArray credentialId) {
+    // remembered before invalidating, so the preload either sees it or publishes before this invalidates
+    Set<Object> invalidations = preloadInvalidations;
+    if (invalidations != null) {
+      for (Object key : new Object[] { username, userHandle, credentialId }) {
+        if (key != null) {
+          invalidations.add(key);
+        }
+      }
+    }
+    
+    if (username != null) {
+      userRegistrationsCache.invalidate(username);
+    }
+    
+    if (userHandle != null) {
+      usernameByUserHandleCache.invalidate(userHandle);
+    }
+    
+    if (credentialId != null) {
+      registrationsByCredentialIdCache.invalidate(credentialId);
+    }
+  }
+  
+  /** set once the startup preload is done */
+  private volatile boolean preloaded = false;
+  
+  /** keys invalidated while the preload runs, null otherwise */
+  private volatile Set<Object> preloadInvalidations = null;
+  
+  /** netids in webauthn_users, replaced as a whole on a full reconcile */
+  private volatile RegisteredUsersIndex registeredUsers = RegisteredUsersIndex.empty();
+  
+  private final double registeredUsersFalsePositiveRate;
+  
+  /** netids this node registered since the last full reconcile started */
+  private volatile Set<String> registeredUsersLocalAdds = ConcurrentHashMap.newKeySet();
+  
+  /** how far below the high watermark a delta sync looks for rows committed out of sequence order */
+  private final long registeredUsersDeltaWindow;
+  
+  /** highest webauthn_users.change_seq seen, -1 until the first full reconcile */
+  private volatile long registeredUsersHighWatermark = -1;
+  
+  private volatile long registeredUsersLastFullReconcile = 0;
+  
+  private final long registeredUsersPollSeconds;
+  
+  private final long registeredUsersFullReconcileMillis;
+
+  /**
+   * @param username
+   * @param registration 
+   * @param userIdentity 
+   * @param authenticatorAttestationResponse 
+   * @param nickname 
+   * @param registrationResponse 
+   */
+  @Override
+  public void addRegistration(String username, RegistrationResult registration, UserIdentity userIdentity, AuthenticatorAttestationResponse authenticatorAttestationResponse, String nickname, String registrationResponse) {
+    long signatureCounter = authenticatorAttestationResponse.getAttestation().getAuthenticatorData().getSignatureCounter();
+    logger.info("Called addRegistration, username=" + username + ", registration=" + registration + ", userIdentity=" + userIdentity + ", signatureCounter=" + signatureCounter + ", nickname=" + nickname);
+    
+    if (!userIdentity.getName().equals(username)) {
+      throw new RuntimeException("Username mismatch, userIdentity.getName()=" + userIdentity.getName() + ", username=" + username);
+    }
+
+    Optional<ByteArray> userHandle = getUserHandleForUsername(username);
+    
+    String aaguid = null;
+    
+    try {
+      aaguid = authenticatorAttestationResponse.getParsedAuthenticatorData().getAttestedCredentialData().get().getAaguid().getHex().replaceFirst("(\\p{XDigit}{8})(\\p{XDigit}{4})(\\p{XDigit}{4})(\\p{XDigit}{4})(\\p{XDigit}+)", "$1-$2-$3-$4-$5");
+    } catch (Exception e) {
+      // ignore for now
+      logger.error("Failed to parse aaguid", e);
+    }
+    
+    Connection conn = null;
+    PreparedStatement ps1 = null;
+    PreparedStatement ps2 = null;
+
+    try {
+      conn = DatabaseConnectionFactory.getShibbolethDatabaseConnection();
+      if (!userHandle.isPresent()) {
+        // need to insert new user
+        String sql = "insert into webauthn_users (netid, user_handle) values (?, ?)";
+        ps1 = conn.prepareStatement(sql);
+        ps1.setString(1, username.trim());
+        ps1.setString(2, userIdentity.getId().getBase64Url());
+        ps1.executeUpdate();
+      } else {
+
+        // verify that the user handle matches
+        if (!userHandle.get().getBase64Url().equals(userIdentity.getId().getBase64Url())) {
+          throw new RuntimeException("User handle mismatch, userHandle1=" + userHandle.get().getBase64Url() + ", userHandle2=" + userIdentity.getId().getBase64Url());
+        }
+      }
+      
+      String sql = "insert into webauthn_registrations (user_handle, credential_type, credential_id, public_key_cose, signature_count, attestation_type, attestation_data, registration_time, nickname, registration_response) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+      ps2 = conn.prepareStatement(sql);
+      ps2.setString(1, userIdentity.getId().getBase64Url());
+      ps2.setString(2, registration.getKeyId().getType().name());
+      ps2.setString(3, registration.getKeyId().getId().getBase64Url());
+      ps2.setString(4, registration.getPublicKeyCose().getBase64Url());
+      ps2.setLong(5, signatureCounter);
+      ps2.setString(6, registration.getAttestationType().name());
+      ps2.setString(7, aaguid);
+      ps2.setTimestamp(8, new Timestamp(System.currentTimeMillis()));
+      ps2.setString(9, nickname);
+      ps2.setString(10, registrationResponse);
+      ps2.executeUpdate();
+      conn.commit();
+      
+      internal_invalidate(username, userIdentity.getId(), registration.getKeyId().getId());
+      registeredUsersLocalAdds.add(username);
+      registeredUsers.add(username);
+      
+      logger.info("Added registration, username=" + username + ", registration=" + registration + ", userIdentity=" + userIdentity + ", signatureCounter=" + signatureCounter + ", nickname=" + nickname);
+    } catch (Exception e) {
+      try {
+        conn.rollback();
+      } catch (SQLException e1) {
+        // ignore
+      }
+      
+      // a cached entry may be what made this fail, e.g. the user registered on another node
+      internal_invalidate(username, userIdentity.getId(), registration.getKeyId().getId());
+      logger.info("Error in addRegistration, username=" + username + ", registration=" + registration + ", userIdentity=" + userIdentity + ", signatureCounter=" + signatureCounter + ", nickname=" + nickname);
+      throw new RuntimeException(e);
+    } finally {
+
+      if (ps1 != null) {
+        try {
+          ps1.close();
+        } catch (SQLException e) {
+          // ignore
+        }
+      }
+      
+      if (ps2 != null) {
+        try {
+          ps2.close();
+        } catch (SQLException e) {
+          // ignore
+        }
+      }
+      
+      if (conn != null) {
+        try {
+          conn.close();
+        } catch (SQLException e) {
+          // ignore
+        }
+      }
+    }    
+  }
+
+  @Override
+  public Set<PublicKeyCredentialDescriptor> getCredentialIdsForUsername(String username) {
+    logger.info("Called getCredentialIdsForUsername, username=" + username);
+
+    Set<PublicKeyCredentialDescriptor> credentialIds = getUserRegistrations(username).getCredentialDescriptors();
+    
+    logger.info("Called getCredentialIdsForUsername, username=" + username + ", returning " + credentialIds.size() + " results");
+
+    return credentialIds;
+  }
+  
+  private Collection<RegistrationData> internal_getRegistrationsFromResultSet(ResultSet rs) throws SQLException, Base64UrlException {
+
+    Collection<RegistrationData> registrations = new ArrayList<RegistrationData>();
+
+    while (rs.next()) {
+      registrations.add(internal_getRegistrationFromResultSet(rs));
+    }
+    
+    return registrations;
+  }
+  
+  private RegistrationData internal_getRegistrationFromResultSet(ResultSet rs) throws SQLException, Base64UrlException {
+    String credentialTypeString = rs.getString("credential_type");
+    String credentialIdBase64 = rs.getString("credential_id");
+    String publicKeyCoseBase64 = rs.getString("public_key_cose");
+    long signatureCount = rs.getLong("signature_count");
+    String attestationTypeString = rs.getString("attestation_type");
+    String netid = rs.getString("netid");
+    String userHandleBase64 = rs.getString("user_handle");
+    Date registrationTime = new Date(rs.getTimestamp("registration_time").getTime());
+    String nickname = rs.getString("nickname");
+    
+    AttestationType attestationType = AttestationType.valueOf(attestationTypeString);
+    if (attestationType == null) {
+      throw new RuntimeException("Invalid attestation type: " + attestationTypeString);
+    }
+    
+    PublicKeyCredentialType credentialType = PublicKeyCredentialType.valueOf(credentialTypeString);
+    if (credentialType == null) {
+      throw new RuntimeException("Invalid credential type type: " + credentialTypeString);
+    }
+    
+    RegistrationData registration = RegistrationData.builder()
+        .attestationTypeString(attestationTypeString)
+        .credentialIdBase64(credentialIdBase64)
+        .credentialTypeString(credentialTypeString)
+        .netid(netid)
+        .nickname(nickname)
+        .publicKeyCoseBase64(publicKeyCoseBase64)
+        .registrationTime(registrationTime)
+        .signatureCount(signatureCount)
+        .userHandleBase64(userHandleBase64)
+        .build();
+    
+    return registration;
+  }
+
+  /**
+   * @param username
+   * @return collection
+   */
+  @Override
+  public Collection<RegistrationData> getRegistrationsByUsername(String username) {
+    logger.info("Called getRegistrationsByUsername, username=" + username);
+    if (StringUtils.isEmpty(username)) {
+      throw new RuntimeException("No username");
+    }
+    
+    return getUserRegistrations(username).getRegistrations();
+  }
+  
+  /**
+   * Loads the user handle and all registrations for a netid with one query on one connection.  Registration start
+   * (user handle and credentials to exclude) and authentication start (credentials to allow) are both answered from
+   * the result.
+   * 
+   * @param username
+   * @return user registrations
+   */
+  public UserRegistrations getUserRegistrations(String username) {
+    logger.info("Called getUserRegistrations, username=" + username);
+    if (StringUtils.isEmpty(username)) {
+      throw new RuntimeException("No username");
+    }
+    
+    return internal_getCached(userRegistrationsCache, username);
+  }
+  
+  private UserRegistrations internal_getUserRegistrationsFromDatabase(String username) {
+    Connection conn = null;
+    PreparedStatement ps = null;
+    ResultSet rs = null;
+        
+    try {
+      conn = DatabaseConnectionFactory.getShibbolethDatabaseConnection();
+      
+      String sql = "select u.netid, u.user_handle, r.credential_type, r.credential_id, r.public_key_cose, r.signature_count, r.attestation_type, r.registration_time, r.nickname from webauthn_users u left outer join webauthn_registrations_v r on r.user_handle = u.user_handle where u.netid = ?";
+      ps = conn.prepareStatement(sql);
+      ps.setString(1, username);
+      rs = ps.executeQuery();
+      
+      String userHandleBase64 = null;
+      Collection<RegistrationData> registrations = new ArrayList<RegistrationData>();
+      while (rs.next()) {
+        userHandleBase64 = rs.getString("user_handle");
+        
+        // outer join, user without any registrations
+        if (rs.getString("credential_id") != null) {
+          registrations.add(internal_getRegistrationFromResultSet(rs));
+        }
+      }
+      
+      if (userHandleBase64 == null) {
+        logger.info("Called getUserRegistrations, username=" + username + ", returning no userHandle");
+        return UserRegistrations.empty(username);
+      }
+      
+      ByteArray userHandle = ByteArray.fromBase64Url(userHandleBase64);
+      usernameByUserHandleCache.put(userHandle, Optional.of(username));
+      
+      logger.info("Called getUserRegistrations, username=" + username + ", returning userHandle=" + userHandleBase64 + " and " + registrations.size() + " results");
+      return new UserRegistrations(username, userHandle, registrations);
+    } catch (SQLException | Base64UrlException e) {
+      logger.error("Error in getUserRegistrations, username=" + username, e);
+      throw new RuntimeException(e);
+    } finally {
+      if (rs != null) {
+        try {
+          rs.close();
+        } catch (SQLException e) {
+          // ignore
+        }
+      }
+
+      if (ps != null) {
+        try {
+          ps.close();
+        } catch (SQLException e) {
+          // ignore
+        }
+      }
+      
+      if (conn != null) {
+        try {
+          conn.close();
+        } catch (SQLException e) {
+          // ignore
+        }
+      }
+    }
+  }
+
+  @Override
+  public Optional<String> getUsernameForUserHandle(ByteArray userHandle) {
+    logger.info("Called getUsernameForUserHandle, userHandle=" + userHandle);
+
+    if (userHandle == null) {
+      logger.error("No userHandle");
+      throw new RuntimeException("No userHandle");
+    }
+    
+    return internal_getCached(usernameByUserHandleCache, userHandle);
+  }
+  
+  private Optional<String> internal_getUsernameForUserHandleFromDatabase(ByteArray userHandle) {
+    Connection conn = null;
+    PreparedStatement ps = null;
+    ResultSet rs = null;
+
+    try {
+      conn = DatabaseConnectionFactory.getShibbolethDatabaseConnection();
+      String userHandleBase64 = userHandle.getBase64Url();
+      String sql = "select netid from webauthn_users where user_handle = ?";
+      ps = conn.prepareStatement(sql);
+      ps.setString(1, userHandleBase64);
+      rs = ps.executeQuery();
+      
+      if (rs.next()) {
+        String netid = rs.getString("netid");
+        logger.info("Called getUsernameForUserHandle, userHandle=" + userHandle + ", returning NetID=" + netid);
+        return Optional.of(netid);
+      } else {
+        logger.info("Called getUsernameForUserHandle, userHandle=" + userHandle + ", returning no NetID");
+        return Optional.empty();
+      }
+    } catch (SQLException e) {
+      logger.error("Error in getUsernameForUserHandle, userHandle=" + userHandle, e);
+      throw new RuntimeException(e);
+    } finally {
+      if (rs != null) {
+        try {
+          rs.close();
+        } catch (SQLException e) {
+          // ignore
+        }
+      }
+
+      if (ps != null) {
+        try {
+          ps.close();
+        } catch (SQLException e) {
+          // ignore
+        }
+      }
+      
+      if (conn != null) {
+        try {
+          conn.close();
+        } catch (SQLException e) {
+          // ignore
+        }
+      }
+    }
+  }
+
+  @Override
+  public Optional<ByteArray> getUserHandleForUsername(String username) {
+    logger.info("Called getUserHandleForUsername, username=" + username);
+
+    if (StringUtils.isEmpty(username)) {
+      logger.error("No username");
+      throw new RuntimeException("No username");
+    }
+    
+    return getUserRegistrations(username).getUserHandle();
+  }
+  
+  /**
+   * @param result
+   */
+  public void updateSignatureCount(AssertionResult result) {
+    updateSignatureCount(result, -1);
+  }
+
+  /**
+   * @param result
+   * @param storedSignatureCount count the relying party verified against, -1 if not known
+   */
+  @Override
+  public void updateSignatureCount(AssertionResult result, long storedSignatureCount) {
+
+    if (result == null) {
+      throw new RuntimeException("No result");
+    }
+    
+    logger.info("Called updateSignatureCount, result=" + result + ", netid=" + result.getUsername() + ", credentialId=" + result.getCredentialId().getBase64Url());    
+
+    if (storedSignatureCount < 0) {
+      storedSignatureCount = internal_getStoredSignatureCount(result.getUserHandle(), result.getCredentialId());
+    }
+
+    // many platform authenticators always report 0.  writing 0 over 0 only moves last_authn_time, which
+    // only needs doing once per interval
+    if (result.getSignatureCount() == 0 && storedSignatureCount == 0
+        && signatureCountWriter.isRecentlyWritten(result.getUserHandle(), result.getCredentialId())) {
+      logger.info("Skipping signature count update, count is still 0, netid=" + result.getUsername() + ", credentialId=" + result.getCredentialId().getBase64Url());
+      return;
+    }
+
+    // written in the background, lookupAll sees the new count right away
+    signatureCountWriter.update(result.getUserHandle(), result.getCredentialId(), result.getSignatureCount());
+
+    logger.info("Updating signature count to " + result.getSignatureCount() + " for netid=" + result.getUsername() + ", credentialId=" + result.getCredentialId().getBase64Url());  
+  }
+
+  /**
+   * written in the background, like counts from assertions
+   * 
+   * @param credentialId
+   * @param userHandle
+   * @param signatureCount
+   */
+  @Override
+  public void updateSignatureCount(ByteArray credentialId, ByteArray userHandle, long signatureCount) {
+    signatureCountWriter.update(userHandle, credentialId, signatureCount);
+  }
+
+  /**
+   * @param userHandle
+   * @param credentialId
+   * @return count as last read (the relying party has just looked it up), -1 if it isn't cached
+   */
+  private long internal_getStoredSignatureCount(ByteArray userHandle, ByteArray credentialId) {
+    Collection<RegistrationData> registrations = registrationsByCredentialIdCache.getIfPresent(credentialId);
+    if (registrations != null) {
+      for (RegistrationData registration : registrations) {
+        if (registration.matches(credentialId, userHandle)) {
+          return signatureCountWriter.applyHighWaterMark(registration).getSignatureCount();
+        }
+      }
+    }
+    
+    return -1;
+  }
+
+  @Override
+  public Optional<RegisteredCredential> lookup(ByteArray credentialId, ByteArray userHandle) {
+    logger.info("Called lookup, credentialId=" + credentialId + ", userHandle=" + userHandle);
+    Set<RegisteredCredential> credentials = lookupAll(credentialId);
+
+    for (RegisteredCredential credential : credentials) {
+      if (userHandle != null && !StringUtils.isEmpty(userHandle.getBase64Url()) && !userHandle.getBase64Url().equals(credential.getUserHandle().getBase64Url())) {
+        continue;
+      }
+      
+      logger.info("Called lookup, credentialId=" + credentialId + ", userHandle=" + userHandle + ", returning 1 result");
+      return Optional.of(credential);
+    }
+    
+    logger.info("Called lookup, credentialId=" + credentialId + ", userHandle=" + userHandle + ", returning 0 results");
+    return Optional.empty();
+  }
+
+  @Override
+  public Set<RegisteredCredential> lookupAll(ByteArray credentialId) {
+    logger.info("Called lookupAll, credentialId=" + credentialId);
+    
+    if (credentialId == null) {
+      throw new RuntimeException("No credentialId");
+    }
+    
+    Collection<RegistrationData> registrations = internal_getCached(registrationsByCredentialIdCache, credentialId);
+    Set<RegisteredCredential> registeredCredentials = new LinkedHashSet<RegisteredCredential>();
+    for (RegistrationData registration : registrations) {
+      registeredCredentials.add(signatureCountWriter.applyHighWaterMark(registration).getRegisteredCredential());
+    }
+
+    logger.info("Called lookupAll, credentialId=" + credentialId + ", returning " + registeredCredentials.size() + " results");
+    return Collections.unmodifiableSet(registeredCredentials);
+  }
+  
+  private Collection<RegistrationData> internal_getRegistrationsByCredentialIdFromDatabase(ByteArray credentialId) {
+    Connection conn = null;
+    PreparedStatement ps = null;
+    ResultSet rs = null;
+
+    try {
+      conn = DatabaseConnectionFactory.getShibbolethDatabaseConnection();
+      
+      String credentialIdBase64 = credentialId.getBase64Url();
+      String sql = "select netid, user_handle, credential_type, credential_id, public_key_cose, signature_count, attestation_type, registration_time, nickname from webauthn_registrations_v where credential_id = ?";
+      ps = conn.prepareStatement(sql);
+      ps.setString(1, credentialIdBase64);
+      rs = ps.executeQuery();
+      
+      Collection<RegistrationData> registrations = internal_getRegistrationsFromResultSet(rs);
+      return Collections.unmodifiableCollection(registrations);
+    } catch (SQLException | Base64UrlException e) {
+      logger.error("Error in lookupAll, credentialId=" + credentialId, e);
+      throw new RuntimeException(e);
+    } finally {
+      if (rs != null) {
+        try {
+          rs.close();
+        } catch (SQLException e) {
+          // ignore
+        }
+      }
+
+      if (ps != null) {
+        try {
+          ps.close();
+        } catch (SQLException e) {
+          // ignore
+        }
+      }
+      
+      if (conn != null) {
+        try {
+          conn.close();
+        } catch (SQLException e) {
+          // ignore
+        }
+      }
+    }
+  }
+  
+  /**
+   * Most users haven't registered so the in memory index answers most calls.  A hit is confirmed against
+   * the database (through the user registrations cache, which authentication start then reuses).  If the
+   * database can't be reached the index answer stands, so a registered user is still sent to WebAuthn.
+   * Before the index has been loaded every call goes to the database.
+   * 
+   * @param netid
+   * @return boolean
+   */
+  @Override
+  public boolean hasRegistered(String netid) {
+    if (StringUtils.isEmpty(netid)) {
+      return false;
+    }
+    
+    // until the first full reconcile the index is empty and a miss means nothing
+    boolean indexLoaded = registeredUsersHighWatermark >= 0;
+    if (indexLoaded && !registeredUsers.mightContain(netid)) {
+      return false;
+    }
+    
+    try {
+      return getUserRegistrations(netid).getUserHandle().isPresent();
+    } catch (RuntimeException e) {
+      logger.error("Error confirming registered user, using the index answer " + indexLoaded + ", netid=" + netid, e);
+      return indexLoaded;
+    }
+  }
+}
@@ -0,0 +1,129 @@
+/**
+ * Copyright 2019 Duke University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package edu.duke.oit.idms.idp.authn.webauthn;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+
+/**
+ * Compact membership index of registered netids: a bloom filter built from webauthn_users on a full reconcile
+ * plus an exact set of the netids added since.  A negative answer is definitive; a positive one has to be
+ * confirmed against the database.  Instances are built off-thread and published by swapping the reference,
+ * reads take no lock.
+ *
+ * @author shilen
+ */
+public class RegisteredUsersIndex {
+
+  private final BloomFilter<String> filter;
+
+  private final Set<String> added = ConcurrentHashMap.newKeySet();
+
+  private final long count;
+
+  private RegisteredUsersIndex(BloomFilter<String> filter, long count) {
+    this.filter = filter;
+    this.count = count;
+  }
+
+  /**
+   * @param expectedInsertions
+   * @param falsePositiveRate
+   * @return builder for a new index
+   */
+  public static Builder builder(long expectedInsertions, double falsePositiveRate) {
+    return new Builder(expectedInsertions, falsePositiveRate);
+  }
+
+  /**
+   * @return an index with nothing in it
+   */
+  public static RegisteredUsersIndex empty() {
+    return builder(1, 0.01).build();
+  }
+
+  /**
+   * @param netid
+   * @return false if the netid is definitely not registered
+   */
+  public boolean mightContain(String netid) {
+    return added.contains(netid) || filter.mightContain(netid);
+  }
+
+  /**
+   * @param netid registered since the index was built
+   */
+  public void add(String netid) {
+    added.add(netid);
+  }
+
+  /**
+   * @return netids in the filter when it was built
+   */
+  public long getCount() {
+    return count;
+  }
+
+  /**
+   * @return netids added since the index was built
+   */
+  public int getAddedCount() {
+    return added.size();
+  }
+
+  /**
+   * @return expected false positive rate of the filter
+   */
+  public double getExpectedFalsePositiveRate() {
+    return filter.expectedFpp();
+  }
+
+  /**
+   * builds an index
+   */
+  public static final class Builder {
+
+    private final BloomFilter<String> filter;
+
+    private long count = 0;
+
+    private Builder(long expectedInsertions, double falsePositiveRate) {
+      this.filter = BloomFilter.create(Funnels.stringFunnel(StandardCharsets.UTF_8), Math.max(1, expectedInsertions), falsePositiveRate);
+    }
+
+    /**
+     * @param netid
+     * @return this
+     */
+    public Builder add(String netid) {
+      filter.put(netid);
+      count++;
+      return this;
+    }
+
+    /**
+     * @return index
+     */
+    public RegisteredUsersIndex build() {
+      return new RegisteredUsersIndex(filter, count);
+    }
+  }
+}
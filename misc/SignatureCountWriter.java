@@ -0,0 +1,253 @@
+/**
+ * Copyright 2019 Duke University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package edu.duke.oit.idms.idp.authn.webauthn;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.yubico.webauthn.data.ByteArray;
+
+import edu.duke.oit.idms.idp.authn.dbconn.DatabaseConnectionFactory;
+
+/**
+ * Write-behind for signature counts.  Updates are coalesced per credential (highest count wins) and written
+ * as one JDBC batch when batchSize credentials are pending or every flushIntervalMillis, off the login thread.
+ *
+ * Until a count is in the database the highest count seen is kept in memory and laid over what storage
+ * returns, so the relying party's counter check (clone detection) sees it right away.  Counts pending when the
+ * node dies are lost, leaving the stored count at the last flushed value.
+ *
+ * @author shilen
+ */
+public class SignatureCountWriter {
+
+  private Logger logger = LoggerFactory.getLogger(SignatureCountWriter.class);
+
+  /** counts not yet written */
+  private final ConcurrentMap<CredentialKey, Long> pending = new ConcurrentHashMap<CredentialKey, Long>();
+
+  /** highest count seen, kept past the flush so a stale cached read is still corrected */
+  private final Cache<CredentialKey, Long> highWaterMarks;
+
+  /** credentials written within the last authn interval, for eliding writes that would only move last_authn_time */
+  private final Cache<CredentialKey, Boolean> recentlyWritten;
+
+  private final int batchSize;
+
+  private final ScheduledExecutorService executor;
+
+  private final AtomicBoolean flushRequested = new AtomicBoolean(false);
+
+  /**
+   * @param batchSize flush once this many credentials are pending
+   * @param flushIntervalMillis flush at least this often
+   * @param highWaterMarkRetentionMillis how long to remember a count after it's seen, should be longer than the flush interval plus the registration cache ttl
+   * @param lastAuthnIntervalMillis how long a write counts as recent, see {@link #isRecentlyWritten(ByteArray, ByteArray)}
+   */
+  public SignatureCountWriter(int batchSize, long flushIntervalMillis, long highWaterMarkRetentionMillis, long lastAuthnIntervalMillis) {
+    this.batchSize = batchSize;
+
+    this.highWaterMarks = CacheBuilder.newBuilder()
+        .expireAfterWrite(highWaterMarkRetentionMillis, TimeUnit.MILLISECONDS)
+        .build();
+
+    this.recentlyWritten = CacheBuilder.newBuilder()
+        .expireAfterWrite(lastAuthnIntervalMillis, TimeUnit.MILLISECONDS)
+        .build();
+
+    this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "webauthn-signature-count-writer");
+      thread.setDaemon(true);
+      return thread;
+    });
+
+    this.executor.scheduleWithFixedDelay(() -> flush(), flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> flush(), "webauthn-signature-count-writer-shutdown"));
+  }
+
+  /**
+   * @param userHandle
+   * @param credentialId
+   * @param signatureCount
+   */
+  public void update(ByteArray userHandle, ByteArray credentialId, long signatureCount) {
+    CredentialKey key = new CredentialKey(userHandle, credentialId);
+    highWaterMarks.asMap().merge(key, signatureCount, Math::max);
+    recentlyWritten.put(key, Boolean.TRUE);
+    pending.merge(key, signatureCount, Math::max);
+
+    if (pending.size() >= batchSize && flushRequested.compareAndSet(false, true)) {
+      executor.execute(() -> flush());
+    }
+  }
+
+  /**
+   * Every write also sets last_authn_time (trigger on webauthn_registrations), so a write that doesn't change
+   * the count only needs to happen once per last authn interval.
+   * 
+   * @param userHandle
+   * @param credentialId
+   * @return true if a count for this credential was queued within the last authn interval
+   */
+  public boolean isRecentlyWritten(ByteArray userHandle, ByteArray credentialId) {
+    return recentlyWritten.getIfPresent(new CredentialKey(userHandle, credentialId)) != null;
+  }
+
+  /**
+   * @param registration
+   * @return the registration with its count raised to the highest count seen, if higher
+   */
+  public RegistrationData applyHighWaterMark(RegistrationData registration) {
+    Long highWaterMark = highWaterMarks.getIfPresent(new CredentialKey(registration.getUserHandle(), registration.getCredentialId()));
+    if (highWaterMark == null || highWaterMark <= registration.getSignatureCount()) {
+      return registration;
+    }
+
+    return registration.withSignatureCount(highWaterMark);
+  }
+
+  /**
+   * @return number of credentials waiting to be written
+   */
+  public int getPendingCount() {
+    return pending.size();
+  }
+
+  /**
+   * write everything pending
+   */
+  public synchronized void flush() {
+    flushRequested.set(false);
+
+    if (pending.isEmpty()) {
+      return;
+    }
+
+    List<Map.Entry<CredentialKey, Long>> batch = new ArrayList<Map.Entry<CredentialKey, Long>>();
+    for (Map.Entry<CredentialKey, Long> entry : pending.entrySet()) {
+      batch.add(new AbstractMap.SimpleImmutableEntry<CredentialKey, Long>(entry.getKey(), entry.getValue()));
+    }
+
+    Connection conn = null;
+    PreparedStatement ps = null;
+
+    try {
+      conn = DatabaseConnectionFactory.getShibbolethDatabaseConnection();
+
+      // never move a count backwards, another node may have written a higher one
+      String sql = "update webauthn_registrations set signature_count = ? where user_handle = ? and credential_id = ? and signature_count <= ?";
+      ps = conn.prepareStatement(sql);
+      for (Map.Entry<CredentialKey, Long> entry : batch) {
+        ps.setLong(1, entry.getValue());
+        ps.setString(2, entry.getKey().userHandle.getBase64Url());
+        ps.setString(3, entry.getKey().credentialId.getBase64Url());
+        ps.setLong(4, entry.getValue());
+        ps.addBatch();
+      }
+
+      int[] counts = ps.executeBatch();
+      conn.commit();
+
+      for (int i = 0; i < batch.size(); i++) {
+        Map.Entry<CredentialKey, Long> entry = batch.get(i);
+
+        // leave it if a newer count came in while flushing
+        pending.remove(entry.getKey(), entry.getValue());
+
+        if (i < counts.length && counts[i] == 0) {
+          logger.warn("No rows updated, credential not registered to user or count already higher?? userHandle=" + entry.getKey().userHandle.getBase64Url() + ", credentialId=" + entry.getKey().credentialId.getBase64Url() + ", signatureCount=" + entry.getValue());
+        }
+      }
+
+      logger.info("Flushed signature counts, count=" + batch.size() + ", stillPending=" + pending.size());
+    } catch (Exception e) {
+      try {
+        if (conn != null) {
+          conn.rollback();
+        }
+      } catch (SQLException e1) {
+        // ignore
+      }
+
+      // entries stay pending and are retried on the next flush
+      logger.error("Error flushing signature counts, count=" + batch.size(), e);
+    } finally {
+      if (ps != null) {
+        try {
+          ps.close();
+        } catch (SQLException e) {
+          // ignore
+        }
+      }
+
+      if (conn != null) {
+        try {
+          conn.close();
+        } catch (SQLException e) {
+          // ignore
+        }
+      }
+    }
+  }
+
+  /**
+   * a registration is identified by user handle and credential id
+   */
+  private static final class CredentialKey {
+
+    private final ByteArray userHandle;
+    private final ByteArray credentialId;
+
+    private CredentialKey(ByteArray userHandle, ByteArray credentialId) {
+      this.userHandle = userHandle;
+      this.credentialId = credentialId;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof CredentialKey)) {
+        return false;
+      }
+
+      CredentialKey other = (CredentialKey)obj;
+      return userHandle.equals(other.userHandle) && credentialId.equals(other.credentialId);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(userHandle, credentialId);
+    }
+  }
+}
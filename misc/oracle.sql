@@ -2,10 +2,25 @@ CREATE TABLE "SHIBBOLETH"."WEBAUTHN_USERS" (
 	"NETID" VARCHAR2(32 BYTE) NOT NULL ENABLE, 
 	"USER_HANDLE" VARCHAR2(128 BYTE) NOT NULL ENABLE, 
 	"LAST_AUTHN_TIME" DATE, 
+	"CHANGE_SEQ" NUMBER, 
 	 CONSTRAINT "WEBAUTHN_USERS_PK" PRIMARY KEY ("USER_HANDLE"));
 
 CREATE UNIQUE INDEX "SHIBBOLETH"."WEBAUTHN_USERS_NETID_IDX" ON "SHIBBOLETH"."WEBAUTHN_USERS" ("NETID");
 
+CREATE INDEX "SHIBBOLETH"."WEBAUTHN_USERS_CHANGE_SEQ_IDX" ON "SHIBBOLETH"."WEBAUTHN_USERS" ("CHANGE_SEQ");
+
+CREATE SEQUENCE "SHIBBOLETH"."WEBAUTHN_USERS_CHANGE_SEQ";
+
+-- change_seq is the high watermark the IdP uses to only read new or renamed users
+CREATE OR REPLACE EDITIONABLE TRIGGER "SHIBBOLETH"."TRG_WEBAUTHN_USERS_CHANGE_SEQ" 
+BEFORE INSERT OR UPDATE OF netid ON webauthn_users
+FOR EACH ROW
+BEGIN
+    :new.change_seq := webauthn_users_change_seq.nextval;
+END;
+/
+ALTER TRIGGER "SHIBBOLETH"."TRG_WEBAUTHN_USERS_CHANGE_SEQ" ENABLE;
+
 CREATE TABLE "SHIBBOLETH"."WEBAUTHN_REGISTRATIONS" (
 	"USER_HANDLE" VARCHAR2(128 BYTE) NOT NULL ENABLE, 
 	"CREDENTIAL_TYPE" VARCHAR2(20 BYTE) NOT NULL ENABLE, 
@@ -34,3 +49,7 @@ BEGIN
 END;
 /
 ALTER TRIGGER "SHIBBOLETH"."TRG_WEBAUTHN_LAST_AUTHN" ENABLE;
+
+-- upgrading an existing schema
+-- ALTER TABLE "SHIBBOLETH"."WEBAUTHN_USERS" ADD ("CHANGE_SEQ" NUMBER);
+-- UPDATE webauthn_users SET change_seq = webauthn_users_change_seq.nextval;
@@ -0,0 +1,190 @@
+/**
+ * Copyright 2019 Duke University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package edu.duke.oit.idms.idp.authn.webauthn;
+
+import java.util.Collection;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Timer;
+import com.yubico.webauthn.AssertionRequest;
+import com.yubico.webauthn.AssertionResult;
+import com.yubico.webauthn.FinishAssertionOptions;
+import com.yubico.webauthn.RegisteredCredential;
+
+/**
+ * Verifies the assertion posted by the login form (webauthnformdata) against the pending assertion request, the
+ * relying party and storage.  This is everything the validation action does apart from the IdP plumbing, so it
+ * can also be driven directly (benchmarks, load tests).
+ *
+ * @author shilen
+ */
+public class AssertionVerifier {
+
+  private Logger log = LoggerFactory.getLogger(AssertionVerifier.class);
+
+  private final WebAuthnEngine engine;
+
+  private final PendingCeremonyStore pendingCeremonyStore;
+
+  /**
+   * @param engine
+   * @param pendingCeremonyStore where authstart left the assertion request
+   */
+  public AssertionVerifier(WebAuthnEngine engine, PendingCeremonyStore pendingCeremonyStore) {
+    this.engine = engine;
+    this.pendingCeremonyStore = pendingCeremonyStore;
+  }
+
+  /**
+   * @param webauthnFormData
+   * @param username username the user entered (j_username)
+   * @return successful result, the user is authenticated as username
+   * @throws RuntimeException if the user is not authenticated
+   */
+  public AssertionResult verify(String webauthnFormData, String username) {
+    // phase names are metric names, see WebAuthnMetrics
+    String phase = "validate.parse";
+    final Timer.Context totalTimer = WebAuthnMetrics.time("validate");
+    final WebAuthnEvents.CeremonyEvent event = new WebAuthnEvents.CeremonyEvent();
+    event.begin();
+    // storage is read once per ceremony, by the relying party, and reused for the checks below
+    try (CredentialContext credentialContext = CredentialContext.open()) {
+      AssertionResponse assertionResponse;
+      try (Timer.Context timer = WebAuthnMetrics.time(phase)) {
+        // an empty userHandle is read as absent, see EmptyUserHandleDeserializer
+        assertionResponse = engine.getAssertionResponseReader().readValue(webauthnFormData);
+      }
+      
+      phase = "validate.challengeLookup";
+      AssertionRequest assertionRequest;
+      try (Timer.Context timer = WebAuthnMetrics.time(phase)) {
+        // taken (and so removed) even if the assertion fails below, a request id is good for one try
+        assertionRequest = pendingCeremonyStore.take(assertionResponse.getRequestId(), AssertionRequest.class);
+      }
+              
+      if (assertionRequest == null) {
+        throw new RuntimeException("Authentication not in progress: " + assertionResponse.getRequestId().getBase64Url());
+      }
+      
+      if (!assertionRequest.getUsername().isPresent()) {
+        throw new RuntimeException("No username??");
+      }
+      
+      // the user's credentials as read when the ceremony started, the ownership check below only re-reads them
+      // if what the relying party looked up doesn't settle it
+      if (event.isEnabled()) {
+        event.credentialCount = assertionRequest.getPublicKeyCredentialRequestOptions().getAllowCredentials().map(List::size).orElse(-1);
+      }
+      
+      // TODO check status of account or ensure webauthn credentials are killed when user leaves?  Duke specific code has been taken out
+      
+      // credential lookups made by the relying party are timed separately, under repository.*
+      phase = "validate.finishAssertion";
+      AssertionResult result;
+      try (Timer.Context timer = WebAuthnMetrics.time(phase)) {
+        result = engine.getRelyingParty().finishAssertion(
+            FinishAssertionOptions.builder()
+            .request(assertionRequest)
+            .response(assertionResponse.getCredential())
+            .build());
+      }
+      
+      // core code should do this but just in case...
+      if (!assertionResponse.getCredential().getResponse().getParsedAuthenticatorData().getFlags().UV) {
+        throw new RuntimeException("No UV flag??");
+      }
+      
+      if (result.isSuccess()) {
+        final WebAuthnEvents.SignatureCountUpdateEvent countEvent = new WebAuthnEvents.SignatureCountUpdateEvent();
+        countEvent.begin();
+        try (Timer.Context timer = WebAuthnMetrics.time("validate.updateSignatureCount")) {
+          RegisteredCredential credential = credentialContext.getCredential(result.getCredentialId(), result.getUserHandle());
+          engine.getRegistrationStore().updateSignatureCount(result, credential == null ? -1 : credential.getSignatureCount());
+          countEvent.success = true;
+        } catch (Exception e) {
+          WebAuthnMetrics.failure("validate.updateSignatureCount", e);
+          log.warn("Failed to update signature count for user \"{}\", credential \"{}\"", result.getUsername(), assertionResponse.getCredential().getId(), e);
+        } finally {
+          if (countEvent.shouldCommit()) {
+            countEvent.usernameHash = WebAuthnEvents.usernameHash(result.getUsername());
+            countEvent.signatureCount = result.getSignatureCount();
+            countEvent.commit();
+          }
+        }
+      } else {
+        throw new RuntimeException("WebAuthn authentication error, warnings=" + result.getWarnings());
+      }
+      
+      phase = "validate.ownershipCheck";
+      try (Timer.Context timer = WebAuthnMetrics.time(phase)) {
+        String webauthnUserName = result.getUsername();
+        
+        if (!webauthnUserName.equals(assertionRequest.getUsername().get())) {
+          throw new RuntimeException("Username mismatch??  webauthnUserName=" + webauthnUserName + ", assertionRequest.getUsername()=" + assertionRequest.getUsername());
+        }
+        
+        if (!webauthnUserName.equals(username)) {
+          throw new RuntimeException("Username mismatch??  webauthnUserName=" + webauthnUserName + ", j_username=" + username);
+        }
+              
+        // if i change the username in the db after the assertion is sent, the user ends up authenticating as the original username that isn't in the db anymore
+        // not sure if that's a real problem.  doing additional check just in case.  though multiple users can have the same credential id?
+        // answered from what the relying party just read where possible, otherwise the user's registrations are read
+        if (!assertionResponse.getCredential().getId().equals(result.getCredentialId())) {
+          throw new RuntimeException("Credential id mismatch??  webauthnUserName=" + webauthnUserName);
+        }
+        
+        if (!credentialContext.isRegisteredTo(webauthnUserName, result.getCredentialId(), result.getUserHandle(), engine.getRelyingParty().getCredentialRepository())) {
+          Collection<RegistrationData> allRegistrationsForUser = engine.getRegistrationStore().getRegistrationsByUsername(webauthnUserName);
+          event.credentialCount = allRegistrationsForUser.size();
+          boolean found = false;
+          for (RegistrationData data : allRegistrationsForUser) {
+            if (data.getCredentialIdBase64().equals(result.getCredentialId().getBase64Url()) && data.getCredentialIdBase64().equals(assertionResponse.getCredential().getId().getBase64Url()) &&
+                data.getUserHandleBase64().equals(result.getUserHandle().getBase64Url())) {
+              found = true;
+              break;
+            }
+          }
+          
+          if (!found) {
+            throw new RuntimeException("Unable to find this registration for this user???  webauthnUserName=" + webauthnUserName);
+          }
+        }
+      }
+      
+      event.success = true;
+      return result;
+    } catch (final RuntimeException e) {
+      WebAuthnMetrics.failure(phase, e);
+      throw e;
+    } catch (final Exception e) {
+      WebAuthnMetrics.failure(phase, e);
+      throw new RuntimeException(e);
+    } finally {
+      totalTimer.stop();
+      
+      if (event.shouldCommit()) {
+        event.phase = "validate";
+        event.usernameHash = WebAuthnEvents.usernameHash(username);
+        event.commit();
+      }
+    }
+  }
+}
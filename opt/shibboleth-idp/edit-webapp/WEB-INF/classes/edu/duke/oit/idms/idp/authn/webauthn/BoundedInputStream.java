@@ -0,0 +1,108 @@
+/**
+ * Copyright 2019 Duke University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package edu.duke.oit.idms.idp.authn.webauthn;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Fails once more than maxBytes have been read, so a request body can be parsed as it streams in without
+ * trusting its size.  Optionally copies what is read, to keep the body as posted.
+ *
+ * @author shilen
+ */
+public class BoundedInputStream extends FilterInputStream {
+
+  private final long maxBytes;
+
+  private final OutputStream copy;
+
+  private long count = 0;
+
+  /**
+   * @param in
+   * @param maxBytes
+   */
+  public BoundedInputStream(InputStream in, long maxBytes) {
+    this(in, maxBytes, null);
+  }
+
+  /**
+   * @param in
+   * @param maxBytes
+   * @param copy gets every byte read (or skipped), or null
+   */
+  public BoundedInputStream(InputStream in, long maxBytes, OutputStream copy) {
+    super(in);
+    this.maxBytes = maxBytes;
+    this.copy = copy;
+  }
+
+  @Override
+  public int read() throws IOException {
+    int b = super.read();
+    if (b >= 0) {
+      internal_count(1);
+      if (copy != null) {
+        copy.write(b);
+      }
+    }
+
+    return b;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    int n = super.read(b, off, len);
+    if (n > 0) {
+      internal_count(n);
+      if (copy != null) {
+        copy.write(b, off, n);
+      }
+    }
+
+    return n;
+  }
+
+  @Override
+  public long skip(long n) throws IOException {
+    if (copy != null) {
+      // read through so the copy has no gaps
+      byte[] buffer = new byte[(int)Math.min(n, 8192)];
+      int read = read(buffer, 0, buffer.length);
+      return Math.max(read, 0);
+    }
+
+    long skipped = super.skip(n);
+    internal_count(skipped);
+    return skipped;
+  }
+
+  @Override
+  public boolean markSupported() {
+    return false;
+  }
+
+  private void internal_count(long n) throws IOException {
+    count += n;
+    if (count > maxBytes) {
+      throw new IOException("Request body is larger than " + maxBytes + " bytes");
+    }
+  }
+}
@@ -0,0 +1,89 @@
+/**
+ * Copyright 2019 Duke University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package edu.duke.oit.idms.idp.authn.webauthn;
+
+import java.util.Optional;
+import java.util.Set;
+
+import com.yubico.webauthn.CredentialRepository;
+import com.yubico.webauthn.RegisteredCredential;
+import com.yubico.webauthn.data.ByteArray;
+import com.yubico.webauthn.data.PublicKeyCredentialDescriptor;
+
+/**
+ * Memoizes lookups in the {@link CredentialContext} open on this thread, if any, so each is made against the
+ * delegate once per ceremony.  With no context open every call goes to the delegate.
+ *
+ * @author shilen
+ */
+public class CeremonyCredentialRepository implements CredentialRepository {
+
+  private final CredentialRepository delegate;
+
+  /**
+   * @param delegate
+   */
+  public CeremonyCredentialRepository(CredentialRepository delegate) {
+    this.delegate = delegate;
+  }
+
+  @Override
+  public Set<PublicKeyCredentialDescriptor> getCredentialIdsForUsername(String username) {
+    // only used when starting a ceremony, once
+    return delegate.getCredentialIdsForUsername(username);
+  }
+
+  @Override
+  public Optional<ByteArray> getUserHandleForUsername(String username) {
+    CredentialContext context = CredentialContext.current();
+    if (context == null || username == null) {
+      return delegate.getUserHandleForUsername(username);
+    }
+
+    return context.getUserHandleForUsername(username, delegate::getUserHandleForUsername);
+  }
+
+  @Override
+  public Optional<String> getUsernameForUserHandle(ByteArray userHandle) {
+    CredentialContext context = CredentialContext.current();
+    if (context == null || userHandle == null) {
+      return delegate.getUsernameForUserHandle(userHandle);
+    }
+
+    return context.getUsernameForUserHandle(userHandle, delegate::getUsernameForUserHandle);
+  }
+
+  @Override
+  public Optional<RegisteredCredential> lookup(ByteArray credentialId, ByteArray userHandle) {
+    CredentialContext context = CredentialContext.current();
+    if (context == null || credentialId == null) {
+      return delegate.lookup(credentialId, userHandle);
+    }
+
+    return context.lookup(credentialId, userHandle, key -> delegate.lookup(credentialId, userHandle));
+  }
+
+  @Override
+  public Set<RegisteredCredential> lookupAll(ByteArray credentialId) {
+    CredentialContext context = CredentialContext.current();
+    if (context == null || credentialId == null) {
+      return delegate.lookupAll(credentialId);
+    }
+
+    return context.lookupAll(credentialId, delegate::lookupAll);
+  }
+}
@@ -0,0 +1,147 @@
+/**
+ * Copyright 2019 Duke University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package edu.duke.oit.idms.idp.authn.webauthn;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+/**
+ * Caps how many request threads can be doing WebAuthn work (attestation and assertion verification, storage
+ * calls) at once.  Past maxConcurrent, up to maxQueued more wait up to queueTimeoutMillis for a turn; anything
+ * beyond that is turned away right away with a {@link CeremonyRejectedException}.  A slow database then holds
+ * at most maxConcurrent + maxQueued container threads instead of all of them, and the rest of the IdP
+ * (password logins etc) keeps working.
+ *
+ * Callers run the ceremony on their own thread between {@link #acquire()} and {@link #release()}; both the
+ * servlet and the webflow action are synchronous, so handing the work to another pool wouldn't free the request
+ * thread anyway.  Active and queued counts are gauges, waits are timed and rejections counted, see
+ * {@link WebAuthnMetrics}.
+ *
+ * @author shilen
+ */
+public class CeremonyLimiter {
+
+  private static Logger logger = LoggerFactory.getLogger(CeremonyLimiter.class);
+
+  private static CeremonyLimiter instance = null;
+
+  private final int maxConcurrent;
+
+  private final int maxQueued;
+
+  private final long queueTimeoutMillis;
+
+  private final Semaphore permits;
+
+  private final AtomicInteger queued = new AtomicInteger();
+
+  /**
+   * @return instance configured in WebAuthn.properties
+   */
+  public synchronized static CeremonyLimiter getInstance() {
+    if (instance == null) {
+      WebAuthnProperties properties = WebAuthnProperties.getInstance();
+      int maxConcurrent = properties.getPropertyInt("idp.WebAuthn.limiter.maxConcurrent", false, 32);
+      int maxQueued = properties.getPropertyInt("idp.WebAuthn.limiter.maxQueued", false, 64);
+      long queueTimeoutMillis = properties.getPropertyLong("idp.WebAuthn.limiter.queueTimeoutMillis", false, 2000L);
+
+      instance = new CeremonyLimiter(maxConcurrent, maxQueued, queueTimeoutMillis);
+      logger.info("Ceremony limiter configured with maxConcurrent=" + maxConcurrent + ", maxQueued=" + maxQueued + ", queueTimeoutMillis=" + queueTimeoutMillis);
+    }
+
+    return instance;
+  }
+
+  /**
+   * @param maxConcurrent ceremonies running at once, 0 for no limit
+   * @param maxQueued ceremonies waiting for a turn
+   * @param queueTimeoutMillis how long one waits
+   */
+  public CeremonyLimiter(int maxConcurrent, int maxQueued, long queueTimeoutMillis) {
+    this.maxConcurrent = maxConcurrent;
+    this.maxQueued = maxQueued;
+    this.queueTimeoutMillis = queueTimeoutMillis;
+    this.permits = maxConcurrent > 0 ? new Semaphore(maxConcurrent, true) : null;
+
+    MetricRegistry registry = WebAuthnMetrics.getMetricRegistry();
+    registry.gauge(MetricRegistry.name(WebAuthnMetrics.PREFIX, "limiter", "active"), () -> (Gauge<Integer>)() -> getActive());
+    registry.gauge(MetricRegistry.name(WebAuthnMetrics.PREFIX, "limiter", "queued"), () -> (Gauge<Integer>)() -> getQueued());
+  }
+
+  /**
+   * Wait for a turn, release it when done.
+   *
+   * @throws CeremonyRejectedException if the queue is full or the wait timed out, nothing to release
+   */
+  public void acquire() {
+    if (permits == null || permits.tryAcquire()) {
+      return;
+    }
+
+    if (queued.incrementAndGet() > maxQueued) {
+      queued.decrementAndGet();
+      internal_reject("queueFull");
+    }
+
+    try (Timer.Context timer = WebAuthnMetrics.time("limiter.queueWait")) {
+      if (!permits.tryAcquire(queueTimeoutMillis, TimeUnit.MILLISECONDS)) {
+        internal_reject("queueTimeout");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      internal_reject("interrupted");
+    } finally {
+      queued.decrementAndGet();
+    }
+  }
+
+  /**
+   * end a turn
+   */
+  public void release() {
+    if (permits != null) {
+      permits.release();
+    }
+  }
+
+  /**
+   * @return ceremonies running now
+   */
+  public int getActive() {
+    return permits == null ? 0 : maxConcurrent - permits.availablePermits();
+  }
+
+  /**
+   * @return ceremonies waiting for a turn
+   */
+  public int getQueued() {
+    return queued.get();
+  }
+
+  private void internal_reject(String reason) {
+    WebAuthnMetrics.getMetricRegistry().counter(MetricRegistry.name(WebAuthnMetrics.PREFIX, "limiter", "rejected", reason)).inc();
+    throw new CeremonyRejectedException("WebAuthn is busy (" + reason + "), active=" + getActive() + ", queued=" + getQueued());
+  }
+}
@@ -0,0 +1,151 @@
+/**
+ * Copyright 2019 Duke University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package edu.duke.oit.idms.idp.authn.webauthn;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Function;
+
+import com.yubico.webauthn.CredentialRepository;
+import com.yubico.webauthn.RegisteredCredential;
+import com.yubico.webauthn.data.ByteArray;
+
+/**
+ * What storage returned during one ceremony.  Opened around a ceremony on the thread running it; while open,
+ * {@link CeremonyCredentialRepository} answers repeated lookups from here, and the checks after the relying
+ * party is done (ownership, signature count) reuse what it looked up instead of reading storage again.
+ * Not thread safe, it belongs to one thread.
+ *
+ * @author shilen
+ */
+public class CredentialContext implements AutoCloseable {
+
+  private static final ThreadLocal<CredentialContext> current = new ThreadLocal<CredentialContext>();
+
+  private final CredentialContext previous;
+
+  private final Map<String, Optional<ByteArray>> userHandlesByUsername = new HashMap<String, Optional<ByteArray>>();
+
+  private final Map<ByteArray, Optional<String>> usernamesByUserHandle = new HashMap<ByteArray, Optional<String>>();
+
+  /** keyed by credential id and user handle (which may be null) */
+  private final Map<List<ByteArray>, Optional<RegisteredCredential>> credentials = new HashMap<List<ByteArray>, Optional<RegisteredCredential>>();
+
+  private final Map<ByteArray, Set<RegisteredCredential>> credentialsById = new HashMap<ByteArray, Set<RegisteredCredential>>();
+
+  private CredentialContext(CredentialContext previous) {
+    this.previous = previous;
+  }
+
+  /**
+   * @return new context for this thread, close it when the ceremony is done
+   */
+  public static CredentialContext open() {
+    CredentialContext context = new CredentialContext(current.get());
+    current.set(context);
+    return context;
+  }
+
+  /**
+   * @return context open on this thread, or null
+   */
+  public static CredentialContext current() {
+    return current.get();
+  }
+
+  @Override
+  public void close() {
+    if (previous == null) {
+      current.remove();
+    } else {
+      current.set(previous);
+    }
+  }
+
+  Optional<ByteArray> getUserHandleForUsername(String username, Function<String, Optional<ByteArray>> loader) {
+    return userHandlesByUsername.computeIfAbsent(username, loader);
+  }
+
+  Optional<String> getUsernameForUserHandle(ByteArray userHandle, Function<ByteArray, Optional<String>> loader) {
+    return usernamesByUserHandle.computeIfAbsent(userHandle, loader);
+  }
+
+  Optional<RegisteredCredential> lookup(ByteArray credentialId, ByteArray userHandle, Function<List<ByteArray>, Optional<RegisteredCredential>> loader) {
+    return credentials.computeIfAbsent(Arrays.asList(credentialId, userHandle), loader);
+  }
+
+  Set<RegisteredCredential> lookupAll(ByteArray credentialId, Function<ByteArray, Set<RegisteredCredential>> loader) {
+    return credentialsById.computeIfAbsent(credentialId, loader);
+  }
+
+  /**
+   * @param credentialId
+   * @param userHandle
+   * @return credential as looked up during this ceremony, or null if it wasn't
+   */
+  public RegisteredCredential getCredential(ByteArray credentialId, ByteArray userHandle) {
+    for (Optional<RegisteredCredential> credential : credentials.values()) {
+      if (credential.isPresent() && internal_matches(credential.get(), credentialId, userHandle)) {
+        return credential.get();
+      }
+    }
+
+    for (Set<RegisteredCredential> credentialSet : credentialsById.values()) {
+      for (RegisteredCredential credential : credentialSet) {
+        if (internal_matches(credential, credentialId, userHandle)) {
+          return credential;
+        }
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   * Same question as scanning the user's registrations: username and userHandle map to each other and this
+   * credential is registered under userHandle.  The relying party doesn't check the mapping when the request
+   * has a username and the response a user handle, so it may be read here (once, through repository).
+   *
+   * @param username
+   * @param credentialId
+   * @param userHandle
+   * @param repository to read the mapping through if it wasn't read during the ceremony
+   * @return true if the credential is registered to username, false if that can't be shown from what was looked
+   * up during this ceremony (not that it isn't registered)
+   */
+  public boolean isRegisteredTo(String username, ByteArray credentialId, ByteArray userHandle, CredentialRepository repository) {
+    if (getCredential(credentialId, userHandle) == null) {
+      return false;
+    }
+
+    Optional<String> usernameForUserHandle = usernamesByUserHandle.get(userHandle);
+    if (usernameForUserHandle != null && usernameForUserHandle.isPresent() && usernameForUserHandle.get().equals(username)) {
+      return true;
+    }
+
+    Optional<ByteArray> userHandleForUsername = repository.getUserHandleForUsername(username);
+    return userHandleForUsername.isPresent() && userHandleForUsername.get().equals(userHandle);
+  }
+
+  private static boolean internal_matches(RegisteredCredential credential, ByteArray credentialId, ByteArray userHandle) {
+    return credential.getCredentialId().equals(credentialId) && credential.getUserHandle().equals(userHandle);
+  }
+}
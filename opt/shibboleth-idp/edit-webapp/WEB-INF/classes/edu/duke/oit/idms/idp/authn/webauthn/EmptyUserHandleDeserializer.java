@@ -0,0 +1,86 @@
+/**
+ * Copyright 2019 Duke University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package edu.duke.oit.idms.idp.authn.webauthn;
+
+import java.io.IOException;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.deser.std.StdDeserializer;
+import com.yubico.webauthn.data.AuthenticatorAssertionResponse;
+import com.yubico.webauthn.data.ByteArray;
+import com.yubico.webauthn.data.exception.Base64UrlException;
+
+/**
+ * Reads an assertion's userHandle, treating "" as absent.  Some browsers send an empty userHandle instead of
+ * leaving it out (https://github.com/Yubico/java-webauthn-server/issues/12), which the relying party would
+ * otherwise take as a user handle that matches nobody.  Done while parsing, so the posted JSON isn't searched
+ * and rewritten first.  Attached to {@link AuthenticatorAssertionResponse} with {@link #MIXIN}.
+ *
+ * @author shilen
+ */
+public class EmptyUserHandleDeserializer extends StdDeserializer<ByteArray> {
+
+  private static final long serialVersionUID = 1L;
+
+  /** mixin for {@link AuthenticatorAssertionResponse} */
+  public static final Class<?> MIXIN = AuthenticatorAssertionResponseMixin.class;
+
+  /**
+   * constructor
+   */
+  public EmptyUserHandleDeserializer() {
+    super(ByteArray.class);
+  }
+
+  @Override
+  public ByteArray deserialize(JsonParser p, DeserializationContext ctxt) throws IOException {
+    if (p.currentToken() != JsonToken.VALUE_STRING) {
+      return (ByteArray)ctxt.handleUnexpectedToken(ByteArray.class, p);
+    }
+
+    if (p.getTextLength() == 0) {
+      return null;
+    }
+
+    String value = p.getText();
+    try {
+      return ByteArray.fromBase64Url(value);
+    } catch (Base64UrlException e) {
+      throw ctxt.weirdStringException(value, ByteArray.class, e.getMessage());
+    }
+  }
+
+  /**
+   * same creator as {@link AuthenticatorAssertionResponse}, with this deserializer on userHandle
+   */
+  abstract static class AuthenticatorAssertionResponseMixin {
+
+    @JsonCreator
+    AuthenticatorAssertionResponseMixin(
+        @JsonProperty("authenticatorData") ByteArray authenticatorData,
+        @JsonProperty("clientDataJSON") ByteArray clientDataJSON,
+        @JsonProperty("signature") ByteArray signature,
+        @JsonProperty("userHandle") @JsonDeserialize(using = EmptyUserHandleDeserializer.class) ByteArray userHandle
+        ) {
+    }
+  }
+}
@@ -0,0 +1,122 @@
+/**
+ * Copyright 2019 Duke University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package edu.duke.oit.idms.idp.authn.webauthn;
+
+import java.security.SecureRandom;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.yubico.webauthn.data.ByteArray;
+
+/**
+ * Pending ceremonies in this node's memory.  Entries expire after ttlMillis and are swept in the background;
+ * once maxEntries are pending the oldest are evicted to make room, so a flood of started ceremonies can push
+ * out real ones but can't stop new logins.  Needs sticky sessions (or a single node).
+ *
+ * @author shilen
+ */
+public class InMemoryPendingCeremonyStore implements PendingCeremonyStore {
+
+  private static final SecureRandom random = new SecureRandom();
+
+  private Logger logger = LoggerFactory.getLogger(InMemoryPendingCeremonyStore.class);
+
+  private final Cache<ByteArray, PendingEntry> entries;
+
+  private final long ttlMillis;
+
+  /**
+   * @param ttlMillis how long a ceremony can take
+   * @param maxEntries most ceremonies in progress at once
+   */
+  public InMemoryPendingCeremonyStore(long ttlMillis, int maxEntries) {
+    this.ttlMillis = ttlMillis;
+    this.entries = CacheBuilder.newBuilder()
+        .maximumSize(maxEntries)
+        .expireAfterWrite(ttlMillis, TimeUnit.MILLISECONDS)
+        .removalListener(notification -> {
+          if (notification.getCause() == RemovalCause.SIZE) {
+            logger.debug("Evicted pending ceremony to make room, maxEntries=" + maxEntries);
+          }
+        })
+        .build();
+
+    ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "webauthn-pending-ceremony-sweeper");
+      thread.setDaemon(true);
+      return thread;
+    });
+
+    long sweepMillis = Math.max(1000L, ttlMillis / 2);
+    sweeper.scheduleWithFixedDelay(() -> sweep(), sweepMillis, sweepMillis, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public ByteArray put(Object ceremony) {
+    byte[] requestIdBytes = new byte[64];
+    random.nextBytes(requestIdBytes);
+    ByteArray requestId = new ByteArray(requestIdBytes);
+
+    entries.put(requestId, new PendingEntry(ceremony, System.currentTimeMillis() + ttlMillis));
+    return requestId;
+  }
+
+  @Override
+  public <T> T take(ByteArray requestId, Class<T> type) {
+    // remove rather than get so a ceremony can only be finished once, it doesn't check expiry though
+    PendingEntry entry = entries.asMap().remove(requestId);
+    if (entry == null || entry.expires < System.currentTimeMillis() || !type.isInstance(entry.ceremony)) {
+      return null;
+    }
+
+    return type.cast(entry.ceremony);
+  }
+
+  /**
+   * @return number of ceremonies in progress (including expired ones not yet swept)
+   */
+  public int size() {
+    return (int)entries.size();
+  }
+
+  /**
+   * remove expired ceremonies
+   */
+  public void sweep() {
+    // the cache only cleans up as a side effect of writes, this frees memory when logins stop
+    entries.cleanUp();
+  }
+
+  private static final class PendingEntry {
+
+    private final Object ceremony;
+
+    private final long expires;
+
+    private PendingEntry(Object ceremony, long expires) {
+      this.ceremony = ceremony;
+      this.expires = expires;
+    }
+  }
+}
@@ -0,0 +1,148 @@
+/**
+ * Copyright 2019 Duke University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package edu.duke.oit.idms.idp.authn.webauthn;
+
+import java.util.Optional;
+import java.util.Set;
+
+import com.codahale.metrics.Timer;
+import com.yubico.webauthn.CredentialRepository;
+import com.yubico.webauthn.RegisteredCredential;
+import com.yubico.webauthn.data.ByteArray;
+import com.yubico.webauthn.data.PublicKeyCredentialDescriptor;
+
+/**
+ * Times the credential lookups the relying party makes during a ceremony, see {@link WebAuthnMetrics}, and records
+ * each as a {@link WebAuthnEvents.CredentialRepositoryEvent}, including calls that throw.
+ *
+ * @author shilen
+ */
+public class MeteredCredentialRepository implements CredentialRepository {
+
+  private final CredentialRepository delegate;
+
+  /**
+   * @param delegate
+   */
+  public MeteredCredentialRepository(CredentialRepository delegate) {
+    this.delegate = delegate;
+  }
+
+  @Override
+  public Set<PublicKeyCredentialDescriptor> getCredentialIdsForUsername(String username) {
+    WebAuthnEvents.CredentialRepositoryEvent event = new WebAuthnEvents.CredentialRepositoryEvent();
+    event.begin();
+    Set<PublicKeyCredentialDescriptor> result = null;
+    try (Timer.Context timer = WebAuthnMetrics.time("repository.getCredentialIdsForUsername")) {
+      result = delegate.getCredentialIdsForUsername(username);
+      event.success = true;
+      return result;
+    } finally {
+      // committed on failure too, so slow failing calls show up
+      if (event.shouldCommit()) {
+        event.method = "getCredentialIdsForUsername";
+        event.usernameHash = WebAuthnEvents.usernameHash(username);
+        if (result != null) {
+          event.rowsReturned = result.size();
+        }
+        event.commit();
+      }
+    }
+  }
+
+  @Override
+  public Optional<ByteArray> getUserHandleForUsername(String username) {
+    WebAuthnEvents.CredentialRepositoryEvent event = new WebAuthnEvents.CredentialRepositoryEvent();
+    event.begin();
+    Optional<ByteArray> result = null;
+    try (Timer.Context timer = WebAuthnMetrics.time("repository.getUserHandleForUsername")) {
+      result = delegate.getUserHandleForUsername(username);
+      event.success = true;
+      return result;
+    } finally {
+      if (event.shouldCommit()) {
+        event.method = "getUserHandleForUsername";
+        event.usernameHash = WebAuthnEvents.usernameHash(username);
+        if (result != null) {
+          event.rowsReturned = result.isPresent() ? 1 : 0;
+        }
+        event.commit();
+      }
+    }
+  }
+
+  @Override
+  public Optional<String> getUsernameForUserHandle(ByteArray userHandle) {
+    WebAuthnEvents.CredentialRepositoryEvent event = new WebAuthnEvents.CredentialRepositoryEvent();
+    event.begin();
+    Optional<String> result = null;
+    try (Timer.Context timer = WebAuthnMetrics.time("repository.getUsernameForUserHandle")) {
+      result = delegate.getUsernameForUserHandle(userHandle);
+      event.success = true;
+      return result;
+    } finally {
+      if (event.shouldCommit()) {
+        event.method = "getUsernameForUserHandle";
+        event.usernameHash = WebAuthnEvents.usernameHash(result == null ? null : result.orElse(null));
+        if (result != null) {
+          event.rowsReturned = result.isPresent() ? 1 : 0;
+        }
+        event.commit();
+      }
+    }
+  }
+
+  @Override
+  public Optional<RegisteredCredential> lookup(ByteArray credentialId, ByteArray userHandle) {
+    WebAuthnEvents.CredentialRepositoryEvent event = new WebAuthnEvents.CredentialRepositoryEvent();
+    event.begin();
+    Optional<RegisteredCredential> result = null;
+    try (Timer.Context timer = WebAuthnMetrics.time("repository.lookup")) {
+      result = delegate.lookup(credentialId, userHandle);
+      event.success = true;
+      return result;
+    } finally {
+      if (event.shouldCommit()) {
+        event.method = "lookup";
+        if (result != null) {
+          event.rowsReturned = result.isPresent() ? 1 : 0;
+        }
+        event.commit();
+      }
+    }
+  }
+
+  @Override
+  public Set<RegisteredCredential> lookupAll(ByteArray credentialId) {
+    WebAuthnEvents.CredentialRepositoryEvent event = new WebAuthnEvents.CredentialRepositoryEvent();
+    event.begin();
+    Set<RegisteredCredential> result = null;
+    try (Timer.Context timer = WebAuthnMetrics.time("repository.lookupAll")) {
+      result = delegate.lookupAll(credentialId);
+      event.success = true;
+      return result;
+    } finally {
+      if (event.shouldCommit()) {
+        event.method = "lookupAll";
+        if (result != null) {
+          event.rowsReturned = result.size();
+        }
+        event.commit();
+      }
+    }
+  }
+}
@@ -0,0 +1,644 @@
+/**
+ * Copyright 2019 Duke University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package edu.duke.oit.idms.idp.authn.webauthn;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.yubico.webauthn.RegisteredCredential;
+import com.yubico.webauthn.RegistrationResult;
+import com.yubico.webauthn.data.AuthenticatorAttestationResponse;
+import com.yubico.webauthn.data.ByteArray;
+import com.yubico.webauthn.data.PublicKeyCredentialDescriptor;
+import com.yubico.webauthn.data.UserIdentity;
+
+/**
+ * In memory registrations for deployments with millions of credentials.  Instead of a {@link RegistrationData}
+ * (and its byte arrays, strings and descriptors) per credential, each registration is packed into off-heap
+ * chunks as one record; the heap only holds primitive arrays: record addresses, signature counts and open
+ * addressing indexes by credential id, user handle and netid.  That's a few dozen bytes of heap per credential
+ * in a handful of large arrays, so the old generation stays small no matter how many are registered.
+ * RegisteredCredentials, descriptors and RegistrationData are built from the record when asked for.
+ *
+ * Records are never moved or freed: re-registering a credential writes a new record and leaves the old one
+ * unused (see {@link #getUnusedBytes()}).  Counts are updated in place, everything else is written under a lock.
+ * Readers take no lock.  Off-heap memory counts against -XX:MaxDirectMemorySize, unless the chunks are mapped
+ * from an arena file, in which case the OS pages in the records that are used and can drop the rest.  The
+ * arena file is scratch space, rebuilt on every start; registrations are only kept across restarts if a
+ * {@link RegistrationJournal} is given.
+ *
+ * @author shilen
+ */
+public class OffHeapCredentialRepository implements RegistrationStore {
+
+  private static final int CHUNK_BYTES = 64 * 1024 * 1024;
+
+  private static final int PAGE_BITS = 16;
+
+  private static final int PAGE_SIZE = 1 << PAGE_BITS;
+
+  /** record header: lengths of the fields below, then the registration time */
+  private static final int HEADER_BYTES = 20;
+
+  private static final int CREDENTIAL_ID = 0;
+  private static final int USER_HANDLE = 1;
+  private static final int PUBLIC_KEY_COSE = 2;
+  private static final int NETID = 3;
+  private static final int NICKNAME = 4;
+  private static final int CREDENTIAL_TYPE = 5;
+  private static final int ATTESTATION_TYPE = 6;
+
+  private static final int FIELDS = 7;
+
+  private Logger logger = LoggerFactory.getLogger(OffHeapCredentialRepository.class);
+
+  /** chunks are mapped from this file, null for direct buffers */
+  private final FileChannel arenaChannel;
+
+  /** snapshot and journal on local disk, null if registrations are only kept in memory */
+  private final RegistrationJournal journal;
+
+  /** off-heap chunks, records don't span chunks */
+  private volatile ByteBuffer[] chunks = new ByteBuffer[0];
+
+  /** where the next record goes in the last chunk */
+  private int chunkPosition = CHUNK_BYTES;
+
+  /** record number to address (chunk << 32 | offset), in pages so growing never copies */
+  private volatile long[][] addressPages = new long[0][];
+
+  /** record number to signature count, updated in place */
+  private volatile AtomicLongArray[] signatureCountPages = new AtomicLongArray[0];
+
+  private volatile int recordCount = 0;
+
+  private volatile Index byCredentialId = new Index(1024);
+
+  private volatile Index byUserHandle = new Index(1024);
+
+  private volatile Index byNetid = new Index(1024);
+
+  private long unusedBytes = 0;
+
+  /**
+   * registrations in direct buffers only
+   */
+  public OffHeapCredentialRepository() {
+    this(null, null);
+  }
+
+  /**
+   * @param arenaFile file to map the chunks from, truncated first, may be null for direct buffers
+   * @param journal loads the registrations it has, then keeps every change, may be null
+   */
+  public OffHeapCredentialRepository(File arenaFile, RegistrationJournal journal) {
+    if (arenaFile == null) {
+      arenaChannel = null;
+    } else {
+      try {
+        RandomAccessFile file = new RandomAccessFile(arenaFile, "rw");
+        file.setLength(0);
+        arenaChannel = file.getChannel();
+      } catch (IOException e) {
+        throw new RuntimeException("Unable to open arena file " + arenaFile, e);
+      }
+    }
+
+    this.journal = journal;
+    if (journal != null) {
+      journal.open(new RegistrationJournal.Store() {
+
+        @Override
+        public void applyRegistration(RegistrationData data) {
+          OffHeapCredentialRepository.this.applyRegistration(data);
+        }
+
+        @Override
+        public boolean applySignatureCount(ByteArray credentialId, ByteArray userHandle, long signatureCount) {
+          return OffHeapCredentialRepository.this.applySignatureCount(credentialId, userHandle, signatureCount);
+        }
+
+        @Override
+        public Collection<RegistrationData> getAllRegistrations() {
+          return OffHeapCredentialRepository.this.getAllRegistrations();
+        }
+      });
+    }
+  }
+
+  @Override
+  public void addRegistration(String username, RegistrationResult registration, UserIdentity userIdentity, AuthenticatorAttestationResponse authenticatorAttestationResponse, String nickname, String registrationResponse) {
+    addRegistration(RegistrationData.fromRegistration(username, registration, userIdentity, authenticatorAttestationResponse, nickname));
+  }
+
+  /**
+   * @param data registration to add, replacing any registration of the same credential for the same user handle
+   */
+  public void addRegistration(RegistrationData data) {
+    if (journal == null) {
+      applyRegistration(data);
+      return;
+    }
+
+    journal.sync(journal.write(RegistrationJournal.add(data), () -> {
+      applyRegistration(data);
+      return true;
+    }));
+  }
+
+  /**
+   * add to the arena only, see {@link RegistrationJournal}
+   *
+   * @param data
+   */
+  private synchronized void applyRegistration(RegistrationData data) {
+    byte[] netid = data.getNetid().getBytes(StandardCharsets.UTF_8);
+    int existingForUser = internal_findFirst(byNetid, netid, NETID, null, -1);
+    if (existingForUser >= 0 && !internal_fieldEquals(existingForUser, USER_HANDLE, data.getUserHandle().getBytes())) {
+      throw new RuntimeException("User handle mismatch, userHandle1=" + new ByteArray(internal_field(existingForUser, USER_HANDLE)).getBase64Url() + ", userHandle2=" + data.getUserHandle().getBase64Url());
+    }
+
+    int existing = internal_find(data.getCredentialId(), data.getUserHandle());
+    int record = internal_write(data, netid);
+
+    if (existing >= 0) {
+      byCredentialId.replace(internal_hash(data.getCredentialId().getBytes()), existing, record);
+      byUserHandle.replace(internal_hash(data.getUserHandle().getBytes()), existing, record);
+      byNetid.replace(internal_hash(netid), existing, record);
+      unusedBytes += internal_recordBytes(existing);
+      return;
+    }
+
+    byUserHandle = internal_insert(byUserHandle, USER_HANDLE, internal_hash(data.getUserHandle().getBytes()), record);
+    byNetid = internal_insert(byNetid, NETID, internal_hash(netid), record);
+
+    // index by credential id last so that an assertion can't find the registration before the rest is in place
+    byCredentialId = internal_insert(byCredentialId, CREDENTIAL_ID, internal_hash(data.getCredentialId().getBytes()), record);
+  }
+
+  @Override
+  public void updateSignatureCount(ByteArray credentialId, ByteArray userHandle, long signatureCount) {
+    if (journal == null) {
+      applySignatureCount(credentialId, userHandle, signatureCount);
+      return;
+    }
+
+    journal.sync(journal.write(RegistrationJournal.signatureCount(credentialId, userHandle, signatureCount),
+        () -> applySignatureCount(credentialId, userHandle, signatureCount)));
+  }
+
+  /**
+   * update the arena only, see {@link RegistrationJournal}
+   *
+   * @param credentialId
+   * @param userHandle
+   * @param signatureCount kept only if it's higher than the stored count, concurrent logins can finish out of order
+   * @return false if the count was unchanged
+   */
+  private boolean applySignatureCount(ByteArray credentialId, ByteArray userHandle, long signatureCount) {
+    int record = internal_find(credentialId, userHandle);
+    if (record < 0) {
+      throw new RuntimeException("No rows updated, credential not registered to user?? userHandle=" + userHandle.getBase64Url() + ", credentialId=" + credentialId.getBase64Url());
+    }
+
+    return signatureCountPages[record >>> PAGE_BITS].getAndAccumulate(record & (PAGE_SIZE - 1), signatureCount, Math::max) < signatureCount;
+  }
+
+  /**
+   * @return every registration that hasn't been replaced, e.g. for a snapshot
+   */
+  private Collection<RegistrationData> getAllRegistrations() {
+    List<RegistrationData> all = new ArrayList<RegistrationData>();
+    int count = recordCount;
+    for (int record = 0; record < count; record++) {
+      byte[] credentialId = internal_field(record, CREDENTIAL_ID);
+      byte[] userHandle = internal_field(record, USER_HANDLE);
+      if (internal_findFirst(byCredentialId, credentialId, CREDENTIAL_ID, userHandle, USER_HANDLE) == record) {
+        all.add(internal_registrationData(record));
+      }
+    }
+
+    return all;
+  }
+
+  @Override
+  public Collection<RegistrationData> getRegistrationsByUsername(String username) {
+    if (username == null || username.isEmpty()) {
+      throw new RuntimeException("No username");
+    }
+
+    List<RegistrationData> registrations = new ArrayList<RegistrationData>();
+    for (int record : internal_findAll(byNetid, username.getBytes(StandardCharsets.UTF_8), NETID)) {
+      registrations.add(internal_registrationData(record));
+    }
+
+    return registrations;
+  }
+
+  @Override
+  public boolean hasRegistered(String netid) {
+    if (netid == null || netid.isEmpty()) {
+      return false;
+    }
+
+    return internal_findFirst(byNetid, netid.getBytes(StandardCharsets.UTF_8), NETID, null, -1) >= 0;
+  }
+
+  @Override
+  public Set<PublicKeyCredentialDescriptor> getCredentialIdsForUsername(String username) {
+    if (username == null || username.isEmpty()) {
+      throw new RuntimeException("No username");
+    }
+
+    Set<PublicKeyCredentialDescriptor> descriptors = new LinkedHashSet<PublicKeyCredentialDescriptor>();
+    for (int record : internal_findAll(byNetid, username.getBytes(StandardCharsets.UTF_8), NETID)) {
+      descriptors.add(PublicKeyCredentialDescriptor.builder().id(new ByteArray(internal_field(record, CREDENTIAL_ID))).build());
+    }
+
+    return descriptors;
+  }
+
+  @Override
+  public Optional<ByteArray> getUserHandleForUsername(String username) {
+    if (username == null || username.isEmpty()) {
+      throw new RuntimeException("No username");
+    }
+
+    int record = internal_findFirst(byNetid, username.getBytes(StandardCharsets.UTF_8), NETID, null, -1);
+    return record < 0 ? Optional.empty() : Optional.of(new ByteArray(internal_field(record, USER_HANDLE)));
+  }
+
+  @Override
+  public Optional<String> getUsernameForUserHandle(ByteArray userHandle) {
+    if (userHandle == null) {
+      throw new RuntimeException("No userHandle");
+    }
+
+    int record = internal_findFirst(byUserHandle, userHandle.getBytes(), USER_HANDLE, null, -1);
+    return record < 0 ? Optional.empty() : Optional.of(new String(internal_field(record, NETID), StandardCharsets.UTF_8));
+  }
+
+  @Override
+  public Optional<RegisteredCredential> lookup(ByteArray credentialId, ByteArray userHandle) {
+    if (credentialId == null) {
+      throw new RuntimeException("No credentialId");
+    }
+
+    int record;
+    if (userHandle == null || userHandle.isEmpty()) {
+      record = internal_findFirst(byCredentialId, credentialId.getBytes(), CREDENTIAL_ID, null, -1);
+    } else {
+      record = internal_find(credentialId, userHandle);
+    }
+
+    return record < 0 ? Optional.empty() : Optional.of(internal_registeredCredential(record));
+  }
+
+  @Override
+  public Set<RegisteredCredential> lookupAll(ByteArray credentialId) {
+    if (credentialId == null) {
+      throw new RuntimeException("No credentialId");
+    }
+
+    Set<RegisteredCredential> credentials = new LinkedHashSet<RegisteredCredential>();
+    for (int record : internal_findAll(byCredentialId, credentialId.getBytes(), CREDENTIAL_ID)) {
+      credentials.add(internal_registeredCredential(record));
+    }
+
+    return Collections.unmodifiableSet(credentials);
+  }
+
+  /**
+   * @return registrations stored, including replaced ones
+   */
+  public int getRecordCount() {
+    return recordCount;
+  }
+
+  /**
+   * @return off-heap (or mapped) bytes allocated
+   */
+  public long getOffHeapBytes() {
+    return (long)chunks.length * CHUNK_BYTES;
+  }
+
+  /**
+   * @return off-heap bytes held by replaced registrations
+   */
+  public synchronized long getUnusedBytes() {
+    return unusedBytes;
+  }
+
+  private int internal_find(ByteArray credentialId, ByteArray userHandle) {
+    return internal_findFirst(byCredentialId, credentialId.getBytes(), CREDENTIAL_ID, userHandle.getBytes(), USER_HANDLE);
+  }
+
+  /**
+   * @return first record whose field equals key (and whose otherField equals otherKey, if given), -1 if none
+   */
+  private int internal_findFirst(Index index, byte[] key, int field, byte[] otherKey, int otherField) {
+    AtomicIntegerArray slots = index.slots;
+    int mask = slots.length() - 1;
+    for (int slot = internal_hash(key) & mask; ; slot = (slot + 1) & mask) {
+      int value = slots.get(slot);
+      if (value == 0) {
+        return -1;
+      }
+
+      int record = value - 1;
+      if (internal_fieldEquals(record, field, key) && (otherKey == null || internal_fieldEquals(record, otherField, otherKey))) {
+        return record;
+      }
+    }
+  }
+
+  private List<Integer> internal_findAll(Index index, byte[] key, int field) {
+    List<Integer> records = new ArrayList<Integer>(2);
+    AtomicIntegerArray slots = index.slots;
+    int mask = slots.length() - 1;
+    for (int slot = internal_hash(key) & mask; ; slot = (slot + 1) & mask) {
+      int value = slots.get(slot);
+      if (value == 0) {
+        return records;
+      }
+
+      if (internal_fieldEquals(value - 1, field, key)) {
+        records.add(value - 1);
+      }
+    }
+  }
+
+  /**
+   * @return index with the record added, a new bigger one if this one got too full
+   */
+  private Index internal_insert(Index index, int field, int hash, int record) {
+    if ((index.size + 1) * 2 > index.slots.length()) {
+      Index bigger = new Index(index.slots.length() * 2);
+      for (int slot = 0; slot < index.slots.length(); slot++) {
+        int value = index.slots.get(slot);
+        if (value != 0) {
+          bigger.add(internal_hash(internal_field(value - 1, field)), value - 1);
+        }
+      }
+
+      index = bigger;
+    }
+
+    index.add(hash, record);
+    return index;
+  }
+
+  private int internal_write(RegistrationData data, byte[] netid) {
+    byte[][] fields = new byte[FIELDS][];
+    fields[CREDENTIAL_ID] = data.getCredentialId().getBytes();
+    fields[USER_HANDLE] = data.getUserHandle().getBytes();
+    fields[PUBLIC_KEY_COSE] = data.getPublicKeyCose().getBytes();
+    fields[NETID] = netid;
+    fields[NICKNAME] = internal_bytes(data.getNickname());
+    fields[CREDENTIAL_TYPE] = internal_bytes(data.getCredentialTypeString());
+    fields[ATTESTATION_TYPE] = internal_bytes(data.getAttestationTypeString());
+
+    int length = HEADER_BYTES;
+    for (int i = 0; i < FIELDS; i++) {
+      int max = i >= CREDENTIAL_TYPE ? Byte.MAX_VALUE : Short.MAX_VALUE;
+      if (fields[i].length > max) {
+        throw new RuntimeException("Registration field too long, field=" + i + ", bytes=" + fields[i].length);
+      }
+
+      length += fields[i].length;
+    }
+
+    if (chunkPosition + length > CHUNK_BYTES) {
+      ByteBuffer[] moreChunks = Arrays.copyOf(chunks, chunks.length + 1);
+      moreChunks[chunks.length] = internal_allocateChunk(chunks.length);
+      chunks = moreChunks;
+      chunkPosition = 0;
+      logger.info("Allocated off-heap chunk " + chunks.length + ", records=" + recordCount);
+    }
+
+    ByteBuffer chunk = chunks[chunks.length - 1];
+    int offset = chunkPosition;
+    for (int i = 0; i < CREDENTIAL_TYPE; i++) {
+      chunk.putShort(offset + 2 * i, (short)fields[i].length);
+    }
+
+    chunk.put(offset + 10, (byte)fields[CREDENTIAL_TYPE].length);
+    chunk.put(offset + 11, (byte)fields[ATTESTATION_TYPE].length);
+    chunk.putLong(offset + 12, data.getRegistrationTime() == null ? Long.MIN_VALUE : data.getRegistrationTime().getTime());
+
+    int position = offset + HEADER_BYTES;
+    for (int i = 0; i < FIELDS; i++) {
+      for (byte b : fields[i]) {
+        chunk.put(position++, b);
+      }
+    }
+
+    chunkPosition = position;
+
+    int record = recordCount;
+    if ((record & (PAGE_SIZE - 1)) == 0) {
+      int pages = addressPages.length;
+      long[][] moreAddressPages = Arrays.copyOf(addressPages, pages + 1);
+      moreAddressPages[pages] = new long[PAGE_SIZE];
+      AtomicLongArray[] moreSignatureCountPages = Arrays.copyOf(signatureCountPages, pages + 1);
+      moreSignatureCountPages[pages] = new AtomicLongArray(PAGE_SIZE);
+      addressPages = moreAddressPages;
+      signatureCountPages = moreSignatureCountPages;
+    }
+
+    addressPages[record >>> PAGE_BITS][record & (PAGE_SIZE - 1)] = ((long)(chunks.length - 1) << 32) | offset;
+    signatureCountPages[record >>> PAGE_BITS].set(record & (PAGE_SIZE - 1), data.getSignatureCount());
+
+    // readers only see the record once an index (volatile) points at it
+    recordCount = record + 1;
+    return record;
+  }
+
+  private ByteBuffer internal_allocateChunk(int chunk) {
+    if (arenaChannel == null) {
+      return ByteBuffer.allocateDirect(CHUNK_BYTES);
+    }
+
+    try {
+      return arenaChannel.map(FileChannel.MapMode.READ_WRITE, (long)chunk * CHUNK_BYTES, CHUNK_BYTES);
+    } catch (IOException e) {
+      throw new RuntimeException("Unable to map arena chunk " + chunk, e);
+    }
+  }
+
+  private int internal_recordBytes(int record) {
+    int length = HEADER_BYTES;
+    for (int i = 0; i < FIELDS; i++) {
+      length += internal_fieldLength(record, i);
+    }
+
+    return length;
+  }
+
+  private int internal_fieldLength(int record, int field) {
+    long address = addressPages[record >>> PAGE_BITS][record & (PAGE_SIZE - 1)];
+    ByteBuffer chunk = chunks[(int)(address >>> 32)];
+    int offset = (int)address;
+    return field < CREDENTIAL_TYPE ? chunk.getShort(offset + 2 * field) : chunk.get(offset + 10 + field - CREDENTIAL_TYPE);
+  }
+
+  /**
+   * @return offset of the field in its chunk
+   */
+  private int internal_fieldOffset(int record, int field) {
+    int offset = (int)addressPages[record >>> PAGE_BITS][record & (PAGE_SIZE - 1)] + HEADER_BYTES;
+    for (int i = 0; i < field; i++) {
+      offset += internal_fieldLength(record, i);
+    }
+
+    return offset;
+  }
+
+  private ByteBuffer internal_chunk(int record) {
+    return chunks[(int)(addressPages[record >>> PAGE_BITS][record & (PAGE_SIZE - 1)] >>> 32)];
+  }
+
+  private byte[] internal_field(int record, int field) {
+    ByteBuffer chunk = internal_chunk(record);
+    int offset = internal_fieldOffset(record, field);
+    byte[] value = new byte[internal_fieldLength(record, field)];
+    for (int i = 0; i < value.length; i++) {
+      value[i] = chunk.get(offset + i);
+    }
+
+    return value;
+  }
+
+  private boolean internal_fieldEquals(int record, int field, byte[] key) {
+    if (internal_fieldLength(record, field) != key.length) {
+      return false;
+    }
+
+    ByteBuffer chunk = internal_chunk(record);
+    int offset = internal_fieldOffset(record, field);
+    for (int i = 0; i < key.length; i++) {
+      if (chunk.get(offset + i) != key[i]) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  private long internal_signatureCount(int record) {
+    return signatureCountPages[record >>> PAGE_BITS].get(record & (PAGE_SIZE - 1));
+  }
+
+  private RegisteredCredential internal_registeredCredential(int record) {
+    return RegisteredCredential.builder()
+        .credentialId(new ByteArray(internal_field(record, CREDENTIAL_ID)))
+        .userHandle(new ByteArray(internal_field(record, USER_HANDLE)))
+        .publicKeyCose(new ByteArray(internal_field(record, PUBLIC_KEY_COSE)))
+        .signatureCount(internal_signatureCount(record))
+        .build();
+  }
+
+  private RegistrationData internal_registrationData(int record) {
+    long address = addressPages[record >>> PAGE_BITS][record & (PAGE_SIZE - 1)];
+    long registrationTime = chunks[(int)(address >>> 32)].getLong((int)address + 12);
+
+    return RegistrationData.builder()
+        .credentialId(new ByteArray(internal_field(record, CREDENTIAL_ID)))
+        .userHandle(new ByteArray(internal_field(record, USER_HANDLE)))
+        .publicKeyCose(new ByteArray(internal_field(record, PUBLIC_KEY_COSE)))
+        .netid(new String(internal_field(record, NETID), StandardCharsets.UTF_8))
+        .nickname(internal_string(internal_field(record, NICKNAME)))
+        .credentialTypeString(internal_string(internal_field(record, CREDENTIAL_TYPE)))
+        .attestationTypeString(internal_string(internal_field(record, ATTESTATION_TYPE)))
+        .registrationTime(registrationTime == Long.MIN_VALUE ? null : new Date(registrationTime))
+        .signatureCount(internal_signatureCount(record))
+        .build();
+  }
+
+  private static byte[] internal_bytes(String value) {
+    return value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static String internal_string(byte[] value) {
+    return value.length == 0 ? null : new String(value, StandardCharsets.UTF_8);
+  }
+
+  private static int internal_hash(byte[] key) {
+    // Arrays.hashCode spreads poorly in the low bits, mix it (murmur3 finalizer)
+    int h = Arrays.hashCode(key);
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    h ^= h >>> 16;
+    return h;
+  }
+
+  /**
+   * open addressing, linear probing, slots hold record number + 1 (0 is empty).  Written under the repository's
+   * lock, read without one.
+   */
+  private static final class Index {
+
+    private final AtomicIntegerArray slots;
+
+    private int size = 0;
+
+    private Index(int capacity) {
+      slots = new AtomicIntegerArray(capacity);
+    }
+
+    private void add(int hash, int record) {
+      int mask = slots.length() - 1;
+      int slot = hash & mask;
+      while (slots.get(slot) != 0) {
+        slot = (slot + 1) & mask;
+      }
+
+      slots.set(slot, record + 1);
+      size++;
+    }
+
+    private void replace(int hash, int oldRecord, int newRecord) {
+      int mask = slots.length() - 1;
+      for (int slot = hash & mask; slots.get(slot) != 0; slot = (slot + 1) & mask) {
+        if (slots.get(slot) == oldRecord + 1) {
+          slots.set(slot, newRecord + 1);
+          return;
+        }
+      }
+    }
+  }
+}
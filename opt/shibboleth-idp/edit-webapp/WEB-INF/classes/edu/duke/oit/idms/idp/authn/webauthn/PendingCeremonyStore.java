@@ -0,0 +1,42 @@
+/**
+ * Copyright 2019 Duke University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package edu.duke.oit.idms.idp.authn.webauthn;
+
+import com.yubico.webauthn.data.ByteArray;
+
+/**
+ * Holds a ceremony (registration or authentication) between its start and finish requests.  The request id
+ * returned by {@link #put(Object)} goes to the browser and comes back with the response; {@link #take(ByteArray, Class)}
+ * hands the ceremony out once and forgets it.
+ *
+ * @author shilen
+ */
+public interface PendingCeremonyStore {
+
+  /**
+   * @param ceremony the assertion request or pending registration
+   * @return request id for the ceremony
+   */
+  ByteArray put(Object ceremony);
+
+  /**
+   * @param requestId
+   * @param type
+   * @return the ceremony, or null if there is none of that type for the request id or it has expired
+   */
+  <T> T take(ByteArray requestId, Class<T> type);
+}
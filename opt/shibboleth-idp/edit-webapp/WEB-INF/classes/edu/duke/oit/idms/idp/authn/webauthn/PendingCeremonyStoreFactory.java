@@ -0,0 +1,81 @@
+/**
+ * Copyright 2019 Duke University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package edu.duke.oit.idms.idp.authn.webauthn;
+
+import javax.servlet.ServletContext;
+
+import net.shibboleth.utilities.java.support.security.DataSealer;
+
+import org.opensaml.storage.ReplayCache;
+import org.opensaml.storage.StorageService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.context.WebApplicationContext;
+import org.springframework.web.context.support.WebApplicationContextUtils;
+
+/**
+ * Builds the pending ceremony store configured in WebAuthn.properties, shared by the registration servlet and
+ * the validation action.
+ *
+ * @author shilen
+ */
+public class PendingCeremonyStoreFactory {
+
+  private static Logger logger = LoggerFactory.getLogger(PendingCeremonyStoreFactory.class);
+
+  private static PendingCeremonyStore store = null;
+
+  /**
+   * @param servletContext used to find the storage service bean
+   * @return pending ceremony store
+   */
+  public synchronized static PendingCeremonyStore getPendingCeremonyStore(ServletContext servletContext) {
+    if (store == null) {
+      WebAuthnProperties properties = WebAuthnProperties.getInstance();
+      String type = properties.getProperty("idp.WebAuthn.ceremonyStore", false, "memory");
+      long ttlMillis = properties.getPropertyLong("idp.WebAuthn.ceremonyStore.ttlSeconds", false, 300L) * 1000L;
+
+      if ("memory".equals(type)) {
+        int maxEntries = properties.getPropertyInt("idp.WebAuthn.ceremonyStore.maxEntries", false, 100000);
+        store = new InMemoryPendingCeremonyStore(ttlMillis, maxEntries);
+      } else if ("storageService".equals(type)) {
+        String beanId = properties.getProperty("idp.WebAuthn.ceremonyStore.storageService", false, "shibboleth.StorageService");
+        WebApplicationContext context = WebApplicationContextUtils.getRequiredWebApplicationContext(servletContext);
+        StorageService storageService = context.getBean(beanId, StorageService.class);
+        store = new StorageServicePendingCeremonyStore(storageService, WebAuthnEngine.getInstance().getJsonMapper(), ttlMillis);
+      } else if ("sealed".equals(type)) {
+        String sealerBeanId = properties.getProperty("idp.WebAuthn.ceremonyStore.dataSealer", false, "shibboleth.DataSealer");
+        // no default, the IdP's own replay cache is in memory on each node unless it has been pointed at shared storage
+        // and a token replayed to another node would be accepted there
+        String replayCacheBeanId = properties.getProperty("idp.WebAuthn.ceremonyStore.replayCache", true);
+        if ("shibboleth.ReplayCache".equals(replayCacheBeanId)) {
+          logger.warn("Sealed ceremonies use shibboleth.ReplayCache, tokens are only single use across nodes if idp.replayCache.StorageService is a shared StorageService");
+        }
+        
+        WebApplicationContext context = WebApplicationContextUtils.getRequiredWebApplicationContext(servletContext);
+        store = new SealedPendingCeremonyStore(context.getBean(sealerBeanId, DataSealer.class), context.getBean(replayCacheBeanId, ReplayCache.class),
+            WebAuthnEngine.getInstance().getJsonMapper(), ttlMillis);
+      } else {
+        throw new RuntimeException("Unexpected idp.WebAuthn.ceremonyStore: " + type);
+      }
+
+      logger.info("Using pending ceremony store " + store.getClass().getSimpleName() + ", ttlMillis=" + ttlMillis);
+    }
+
+    return store;
+  }
+}
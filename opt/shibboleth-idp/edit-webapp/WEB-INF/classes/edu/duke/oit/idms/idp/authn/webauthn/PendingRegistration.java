@@ -0,0 +1,72 @@
+/**
+ * Copyright 2019 Duke University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package edu.duke.oit.idms.idp.authn.webauthn;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.yubico.webauthn.data.PublicKeyCredentialCreationOptions;
+
+/**
+ * A registration between type=start and type=finish.
+ *
+ * @author shilen
+ */
+public class PendingRegistration {
+
+  private final String username;
+
+  private final String credentialNickname;
+
+  private final PublicKeyCredentialCreationOptions publicKeyCredentialCreationOptions;
+
+  /**
+   * @param username
+   * @param credentialNickname
+   * @param publicKeyCredentialCreationOptions
+   */
+  @JsonCreator
+  public PendingRegistration(
+      @JsonProperty("username") String username,
+      @JsonProperty("credentialNickname") String credentialNickname,
+      @JsonProperty("publicKeyCredentialCreationOptions") PublicKeyCredentialCreationOptions publicKeyCredentialCreationOptions
+      ) {
+    this.username = username;
+    this.credentialNickname = credentialNickname;
+    this.publicKeyCredentialCreationOptions = publicKeyCredentialCreationOptions;
+  }
+
+  /**
+   * @return the username
+   */
+  public String getUsername() {
+    return username;
+  }
+
+  /**
+   * @return the credentialNickname
+   */
+  public String getCredentialNickname() {
+    return credentialNickname;
+  }
+
+  /**
+   * @return the publicKeyCredentialCreationOptions
+   */
+  public PublicKeyCredentialCreationOptions getPublicKeyCredentialCreationOptions() {
+    return publicKeyCredentialCreationOptions;
+  }
+}
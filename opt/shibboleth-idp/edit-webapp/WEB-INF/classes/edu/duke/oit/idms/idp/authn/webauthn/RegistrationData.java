@@ -17,176 +17,218 @@
 package edu.duke.oit.idms.idp.authn.webauthn;
 
 import java.util.Date;
+import java.util.Objects;
 
 import com.yubico.webauthn.RegisteredCredential;
+import com.yubico.webauthn.RegistrationResult;
+import com.yubico.webauthn.data.AuthenticatorAttestationResponse;
 import com.yubico.webauthn.data.ByteArray;
 import com.yubico.webauthn.data.PublicKeyCredentialDescriptor;
 import com.yubico.webauthn.data.UserIdentity;
 import com.yubico.webauthn.data.exception.Base64UrlException;
 
 /**
+ * Immutable registration.  The credential id, user handle and public key are held decoded and the
+ * descriptor and registered credential handed to the relying party are built once at construction.
+ * Use {@link #withSignatureCount(long)} to get a copy with an updated counter.
+ *
  * @author shilen
  */
-public class RegistrationData {
-
-  private String credentialTypeString;
-  private String credentialIdBase64;
-  private String publicKeyCoseBase64;
-  private long signatureCount;
-  private String attestationTypeString;
-  private String netid;
-  private String userHandleBase64;
-  private Date registrationTime;
-  private String nickname;
-  
+public final class RegistrationData {
+
+  private final String credentialTypeString;
+  private final ByteArray credentialId;
+  private final ByteArray publicKeyCose;
+  private final long signatureCount;
+  private final String attestationTypeString;
+  private final String netid;
+  private final ByteArray userHandle;
+  private final Long registrationTime;
+  private final String nickname;
+
+  private final PublicKeyCredentialDescriptor publicKeyCredentialDescriptor;
+  private final RegisteredCredential registeredCredential;
+
+  private RegistrationData(Builder builder) {
+    if (builder.credentialId == null || builder.userHandle == null || builder.publicKeyCose == null) {
+      throw new RuntimeException("Credential id, user handle and public key are required");
+    }
+
+    if (builder.netid == null || builder.netid.isEmpty()) {
+      throw new RuntimeException("No netid");
+    }
+
+    this.credentialTypeString = builder.credentialTypeString;
+    this.credentialId = builder.credentialId;
+    this.publicKeyCose = builder.publicKeyCose;
+    this.signatureCount = builder.signatureCount;
+    this.attestationTypeString = builder.attestationTypeString;
+    this.netid = builder.netid;
+    this.userHandle = builder.userHandle;
+    this.registrationTime = builder.registrationTime;
+    this.nickname = builder.nickname;
+
+    this.publicKeyCredentialDescriptor = PublicKeyCredentialDescriptor.builder()
+        .id(this.credentialId)
+        .build();
+
+    this.registeredCredential = RegisteredCredential.builder()
+        .credentialId(this.credentialId)
+        .userHandle(this.userHandle)
+        .publicKeyCose(this.publicKeyCose)
+        .signatureCount(this.signatureCount)
+        .build();
+  }
+
+  /**
+   * copy of a registration with a new signature count, reusing the decoded values and descriptor
+   */
+  private RegistrationData(RegistrationData other, long signatureCount) {
+    this.credentialTypeString = other.credentialTypeString;
+    this.credentialId = other.credentialId;
+    this.publicKeyCose = other.publicKeyCose;
+    this.signatureCount = signatureCount;
+    this.attestationTypeString = other.attestationTypeString;
+    this.netid = other.netid;
+    this.userHandle = other.userHandle;
+    this.registrationTime = other.registrationTime;
+    this.nickname = other.nickname;
+
+    this.publicKeyCredentialDescriptor = other.publicKeyCredentialDescriptor;
+    this.registeredCredential = other.registeredCredential.toBuilder()
+        .signatureCount(signatureCount)
+        .build();
+  }
+
+  /**
+   * @return builder
+   */
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /**
+   * @param username
+   * @param registration
+   * @param userIdentity
+   * @param authenticatorAttestationResponse
+   * @param nickname
+   * @return registration, registered now
+   */
+  public static RegistrationData fromRegistration(String username, RegistrationResult registration, UserIdentity userIdentity, AuthenticatorAttestationResponse authenticatorAttestationResponse, String nickname) {
+    if (!userIdentity.getName().equals(username)) {
+      throw new RuntimeException("Username mismatch, userIdentity.getName()=" + userIdentity.getName() + ", username=" + username);
+    }
+
+    return RegistrationData.builder()
+        .attestationTypeString(registration.getAttestationType().name())
+        .credentialId(registration.getKeyId().getId())
+        .credentialTypeString(registration.getKeyId().getType().name())
+        .netid(username)
+        .nickname(nickname)
+        .publicKeyCose(registration.getPublicKeyCose())
+        .userHandle(userIdentity.getId())
+        .signatureCount(authenticatorAttestationResponse.getAttestation().getAuthenticatorData().getSignatureCounter())
+        .registrationTime(new Date())
+        .build();
+  }
+
+  /**
+   * @param newSignatureCount
+   * @return this registration if the count is unchanged, otherwise a copy with the new count
+   */
+  public RegistrationData withSignatureCount(long newSignatureCount) {
+    if (newSignatureCount == this.signatureCount) {
+      return this;
+    }
+
+    return new RegistrationData(this, newSignatureCount);
+  }
+
   /**
    * @return the credentialTypeString
    */
   public String getCredentialTypeString() {
     return credentialTypeString;
   }
-  
+
   /**
-   * @param credentialTypeString the credentialTypeString to set
+   * @return the credentialId
    */
-  public void setCredentialTypeString(String credentialTypeString) {
-    this.credentialTypeString = credentialTypeString;
+  public ByteArray getCredentialId() {
+    return credentialId;
   }
-  
+
   /**
    * @return the credentialIdBase64
    */
   public String getCredentialIdBase64() {
-    return credentialIdBase64;
+    return credentialId.getBase64Url();
   }
-  
-  /**
-   * @param credentialIdBase64 the credentialIdBase64 to set
-   */
-  public void setCredentialIdBase64(String credentialIdBase64) {
-    this.credentialIdBase64 = credentialIdBase64;
-  }
-  
+
   /**
    * @return the publicKeyCoseBase64
    */
   public String getPublicKeyCoseBase64() {
-    return publicKeyCoseBase64;
+    return publicKeyCose.getBase64Url();
   }
-  
-  /**
-   * @param publicKeyCoseBase64 the publicKeyCoseBase64 to set
-   */
-  public void setPublicKeyCoseBase64(String publicKeyCoseBase64) {
-    this.publicKeyCoseBase64 = publicKeyCoseBase64;
-  }
-  
+
   /**
    * @return the signatureCount
    */
   public long getSignatureCount() {
     return signatureCount;
   }
-  
-  /**
-   * @param signatureCount the signatureCount to set
-   */
-  public void setSignatureCount(long signatureCount) {
-    this.signatureCount = signatureCount;
-  }
-  
+
   /**
    * @return the attestationTypeString
    */
   public String getAttestationTypeString() {
     return attestationTypeString;
   }
-  
-  /**
-   * @param attestationTypeString the attestationTypeString to set
-   */
-  public void setAttestationTypeString(String attestationTypeString) {
-    this.attestationTypeString = attestationTypeString;
-  }
-  
+
   /**
    * @return the netid
    */
   public String getNetid() {
     return netid;
   }
-  
-  /**
-   * @param netid the netid to set
-   */
-  public void setNetid(String netid) {
-    this.netid = netid;
-  }
-  
+
   /**
    * @return the userHandleBase64
    */
   public String getUserHandleBase64() {
-    return userHandleBase64;
-  }
-  
-  /**
-   * @param userHandleBase64 the userHandleBase64 to set
-   */
-  public void setUserHandleBase64(String userHandleBase64) {
-    this.userHandleBase64 = userHandleBase64;
+    return userHandle.getBase64Url();
   }
-  
+
   /**
    * @return the registrationTime
    */
   public Date getRegistrationTime() {
-    return registrationTime;
-  }
-  
-  /**
-   * @param registrationTime the registrationTime to set
-   */
-  public void setRegistrationTime(Date registrationTime) {
-    this.registrationTime = registrationTime;
+    return registrationTime == null ? null : new Date(registrationTime);
   }
-  
+
   /**
    * @return the nickname
    */
   public String getNickname() {
     return nickname;
   }
-  
-  /**
-   * @param nickname the nickname to set
-   */
-  public void setNickname(String nickname) {
-    this.nickname = nickname;
-  }
-  
+
   /**
    * @return user handle
    */
   public ByteArray getUserHandle() {
-    try {
-      return ByteArray.fromBase64Url(this.userHandleBase64);
-    } catch (Base64UrlException e) {
-      throw new RuntimeException(e);
-    }
+    return userHandle;
   }
 
   /**
    * @return public key cose
    */
   public ByteArray getPublicKeyCose() {
-    try {
-      return ByteArray.fromBase64Url(this.publicKeyCoseBase64);
-    } catch (Base64UrlException e) {
-      throw new RuntimeException(e);
-    }
+    return publicKeyCose;
   }
-  
+
   /**
    * @return user identity
    */
@@ -194,7 +236,7 @@ public class RegistrationData {
     return UserIdentity.builder()
         .name(this.netid)
         .displayName(this.netid)
-        .id(getUserHandle())
+        .id(this.userHandle)
         .build();
   }
 
@@ -202,24 +244,192 @@ public class RegistrationData {
    * @return public key credential descriptor
    */
   public PublicKeyCredentialDescriptor getPublicKeyCredentialDescriptor() {
-    try {
-      return PublicKeyCredentialDescriptor.builder()
-          .id(ByteArray.fromBase64Url(credentialIdBase64))
-          .build();
-    } catch (Base64UrlException e) {
-      throw new RuntimeException(e);
-    }
+    return publicKeyCredentialDescriptor;
   }
-  
+
   /**
    * @return registered credential
    */
   public RegisteredCredential getRegisteredCredential() {
-    return RegisteredCredential.builder()
-        .credentialId(getPublicKeyCredentialDescriptor().getId())
-        .userHandle(getUserHandle())
-        .publicKeyCose(getPublicKeyCose())
-        .signatureCount(this.getSignatureCount())
-        .build();
+    return registeredCredential;
+  }
+
+  /**
+   * @param otherCredentialId
+   * @param otherUserHandle
+   * @return true if this is the registration of the given credential for the given user handle
+   */
+  public boolean matches(ByteArray otherCredentialId, ByteArray otherUserHandle) {
+    return credentialId.equals(otherCredentialId) && userHandle.equals(otherUserHandle);
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
+
+    if (!(obj instanceof RegistrationData)) {
+      return false;
+    }
+
+    RegistrationData other = (RegistrationData)obj;
+    return signatureCount == other.signatureCount
+        && credentialId.equals(other.credentialId)
+        && userHandle.equals(other.userHandle)
+        && publicKeyCose.equals(other.publicKeyCose)
+        && netid.equals(other.netid)
+        && Objects.equals(credentialTypeString, other.credentialTypeString)
+        && Objects.equals(attestationTypeString, other.attestationTypeString)
+        && Objects.equals(registrationTime, other.registrationTime)
+        && Objects.equals(nickname, other.nickname);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(credentialId, userHandle, netid, signatureCount);
+  }
+
+  @Override
+  public String toString() {
+    return "RegistrationData(netid=" + netid + ", userHandle=" + userHandle.getBase64Url() + ", credentialId=" + credentialId.getBase64Url() + ", signatureCount=" + signatureCount + ", nickname=" + nickname + ")";
+  }
+
+  /**
+   * builder for registration data
+   */
+  public static final class Builder {
+
+    private String credentialTypeString;
+    private ByteArray credentialId;
+    private ByteArray publicKeyCose;
+    private long signatureCount;
+    private String attestationTypeString;
+    private String netid;
+    private ByteArray userHandle;
+    private Long registrationTime;
+    private String nickname;
+
+    private Builder() {
+      // use RegistrationData.builder()
+    }
+
+    /**
+     * @param theCredentialTypeString
+     * @return this
+     */
+    public Builder credentialTypeString(String theCredentialTypeString) {
+      this.credentialTypeString = theCredentialTypeString;
+      return this;
+    }
+
+    /**
+     * @param theCredentialId
+     * @return this
+     */
+    public Builder credentialId(ByteArray theCredentialId) {
+      this.credentialId = theCredentialId;
+      return this;
+    }
+
+    /**
+     * @param credentialIdBase64
+     * @return this
+     * @throws Base64UrlException
+     */
+    public Builder credentialIdBase64(String credentialIdBase64) throws Base64UrlException {
+      this.credentialId = ByteArray.fromBase64Url(credentialIdBase64);
+      return this;
+    }
+
+    /**
+     * @param thePublicKeyCose
+     * @return this
+     */
+    public Builder publicKeyCose(ByteArray thePublicKeyCose) {
+      this.publicKeyCose = thePublicKeyCose;
+      return this;
+    }
+
+    /**
+     * @param publicKeyCoseBase64
+     * @return this
+     * @throws Base64UrlException
+     */
+    public Builder publicKeyCoseBase64(String publicKeyCoseBase64) throws Base64UrlException {
+      this.publicKeyCose = ByteArray.fromBase64Url(publicKeyCoseBase64);
+      return this;
+    }
+
+    /**
+     * @param theSignatureCount
+     * @return this
+     */
+    public Builder signatureCount(long theSignatureCount) {
+      this.signatureCount = theSignatureCount;
+      return this;
+    }
+
+    /**
+     * @param theAttestationTypeString
+     * @return this
+     */
+    public Builder attestationTypeString(String theAttestationTypeString) {
+      this.attestationTypeString = theAttestationTypeString;
+      return this;
+    }
+
+    /**
+     * @param theNetid
+     * @return this
+     */
+    public Builder netid(String theNetid) {
+      this.netid = theNetid;
+      return this;
+    }
+
+    /**
+     * @param theUserHandle
+     * @return this
+     */
+    public Builder userHandle(ByteArray theUserHandle) {
+      this.userHandle = theUserHandle;
+      return this;
+    }
+
+    /**
+     * @param userHandleBase64
+     * @return this
+     * @throws Base64UrlException
+     */
+    public Builder userHandleBase64(String userHandleBase64) throws Base64UrlException {
+      this.userHandle = ByteArray.fromBase64Url(userHandleBase64);
+      return this;
+    }
+
+    /**
+     * @param theRegistrationTime
+     * @return this
+     */
+    public Builder registrationTime(Date theRegistrationTime) {
+      this.registrationTime = theRegistrationTime == null ? null : theRegistrationTime.getTime();
+      return this;
+    }
+
+    /**
+     * @param theNickname
+     * @return this
+     */
+    public Builder nickname(String theNickname) {
+      this.nickname = theNickname;
+      return this;
+    }
+
+    /**
+     * @return registration data
+     */
+    public RegistrationData build() {
+      return new RegistrationData(this);
+    }
   }
 }
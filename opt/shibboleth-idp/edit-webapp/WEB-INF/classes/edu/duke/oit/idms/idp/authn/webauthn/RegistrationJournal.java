@@ -0,0 +1,498 @@
+/**
+ * Copyright 2019 Duke University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package edu.duke.oit.idms.idp.authn.webauthn;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Date;
+import java.util.function.BooleanSupplier;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.yubico.webauthn.data.ByteArray;
+
+/**
+ * Local disk persistence for the in memory {@link RegistrationStorage}: a snapshot of every registration plus a
+ * journal of the registrations and signature counts written since.  Both are sequences of checksummed records;
+ * the journal is appended to through memory mapped segments and made durable with group commit (the first
+ * writer to sync forces everything written so far, the writers behind it find their record already on disk).
+ *
+ * On startup the snapshot is mapped and read, the journal replayed on top (stopping at the first torn or
+ * corrupt record), and a new snapshot written so the journal starts empty.  Once the journal passes compactBytes
+ * it's folded into a new snapshot the same way, blocking writers (not readers) while it's written.  Records set
+ * values rather than change them, so replaying a journal over a snapshot that already has it is harmless.
+ *
+ * @author shilen
+ */
+public class RegistrationJournal {
+
+  /** snapshot file in the directory */
+  public static final String SNAPSHOT_FILE = "registrations.snapshot";
+
+  /** journal file in the directory */
+  public static final String JOURNAL_FILE = "registrations.journal";
+
+  private static final int MAGIC = 0x5741524a;
+
+  private static final int VERSION = 1;
+
+  private static final int HEADER_BYTES = 8;
+
+  private static final int RECORD_HEADER_BYTES = 8;
+
+  /** journal is mapped (and grows) this much at a time, records don't span segments */
+  private static final int SEGMENT_BYTES = 16 * 1024 * 1024;
+
+  /** window for reading the snapshot, at least as big as a record */
+  private static final int READ_WINDOW_BYTES = 64 * 1024 * 1024;
+
+  /** record length marking the rest of the segment unused */
+  private static final int NEXT_SEGMENT = -1;
+
+  private static final byte ADD = 1;
+
+  private static final byte SIGNATURE_COUNT = 2;
+
+  private static Logger logger = LoggerFactory.getLogger(RegistrationJournal.class);
+
+  private final File directory;
+
+  private final long compactBytes;
+
+  private Store storage;
+
+  private FileChannel channel;
+
+  /** segment being appended to, and its offset in the file */
+  private MappedByteBuffer segment;
+  private long segmentStart;
+
+  /** end of the last record appended, in the current journal file */
+  private long written;
+
+  /**
+   * position of the current journal file's start in a sequence that runs across compactions, so positions handed
+   * to {@link #sync(long)} never repeat once the file starts over
+   */
+  private long base;
+
+  /** end of the last record forced to disk, in the same sequence as base */
+  private volatile long durable;
+
+  /** held while forcing, writers wait here to share a force */
+  private final Object syncLock = new Object();
+
+  /**
+   * @param directory where the snapshot and journal are kept, created if needed
+   * @param compactBytes fold the journal into a new snapshot past this size
+   */
+  public RegistrationJournal(File directory, long compactBytes) {
+    this.directory = directory;
+    this.compactBytes = compactBytes;
+  }
+
+  /**
+   * Load the snapshot and journal into storage, then start a new journal.
+   *
+   * @param theStorage storage to load and, from now on, snapshot
+   */
+  synchronized void open(Store theStorage) {
+    this.storage = theStorage;
+
+    try {
+      Files.createDirectories(directory.toPath());
+
+      long start = System.currentTimeMillis();
+      int snapshotRecords = internal_replay(new File(directory, SNAPSHOT_FILE), false);
+      int journalRecords = internal_replay(new File(directory, JOURNAL_FILE), true);
+      logger.info("Loaded registrations from " + directory + ", snapshotRecords=" + snapshotRecords + ", journalRecords=" + journalRecords + ", millis=" + (System.currentTimeMillis() - start));
+
+      internal_compact();
+    } catch (IOException e) {
+      throw new RuntimeException("Unable to open registration journal in " + directory, e);
+    }
+  }
+
+  /**
+   * @param data
+   * @return journal record for adding a registration
+   */
+  static byte[] add(RegistrationData data) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      out.writeByte(ADD);
+      internal_writeRegistration(out, data);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+
+    return bytes.toByteArray();
+  }
+
+  /**
+   * @param credentialId
+   * @param userHandle
+   * @param signatureCount
+   * @return journal record for a signature count
+   */
+  static byte[] signatureCount(ByteArray credentialId, ByteArray userHandle, long signatureCount) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(160);
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      out.writeByte(SIGNATURE_COUNT);
+      internal_writeBytes(out, credentialId);
+      internal_writeBytes(out, userHandle);
+      out.writeLong(signatureCount);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Apply a change to storage and append its record, as one step with respect to other writes and snapshots.
+   *
+   * @param record from {@link #add(RegistrationData)} or {@link #signatureCount(ByteArray, ByteArray, long)}
+   * @param apply makes the change in memory, returns false if there was nothing to change (nothing is appended)
+   * @return position to {@link #sync(long)} to, -1 if nothing was appended
+   */
+  synchronized long write(byte[] record, BooleanSupplier apply) {
+    if (!apply.getAsBoolean()) {
+      return -1;
+    }
+
+    try {
+      internal_append(record);
+
+      if (written > compactBytes) {
+        internal_compact();
+      }
+    } catch (IOException e) {
+      // memory is ahead of disk until the next snapshot (or lost on restart)
+      throw new RuntimeException("Unable to write registration journal in " + directory, e);
+    }
+
+    return base + written;
+  }
+
+  /**
+   * Wait until everything up to position is on disk.
+   *
+   * @param position from {@link #write(byte[], BooleanSupplier)}
+   */
+  void sync(long position) {
+    if (position < 0 || durable >= position) {
+      return;
+    }
+
+    synchronized (syncLock) {
+      if (durable >= position) {
+        return;
+      }
+
+      MappedByteBuffer toForce;
+      long target;
+      synchronized (this) {
+        toForce = segment;
+        target = base + written;
+      }
+
+      // may include records appended after ours, which is the point
+      toForce.force();
+
+      synchronized (this) {
+        // a compaction in the meantime has already moved durable past target
+        if (target > durable) {
+          durable = target;
+        }
+      }
+    }
+  }
+
+  private void internal_append(byte[] record) throws IOException {
+    if (record.length + RECORD_HEADER_BYTES + 4 > SEGMENT_BYTES) {
+      throw new RuntimeException("Record too large for the journal, bytes=" + record.length);
+    }
+
+    int offset = (int)(written - segmentStart);
+    if (offset + RECORD_HEADER_BYTES + record.length + 4 > SEGMENT_BYTES) {
+      // the rest of this segment is skipped on replay
+      segment.putInt(offset, NEXT_SEGMENT);
+      internal_mapSegment(segmentStart + SEGMENT_BYTES);
+      offset = 0;
+    }
+
+    CRC32 crc = new CRC32();
+    crc.update(record);
+
+    // body first and the length last, so a record is only seen on replay once it's all there
+    segment.putInt(offset + 4, (int)crc.getValue());
+    for (int i = 0; i < record.length; i++) {
+      segment.put(offset + RECORD_HEADER_BYTES + i, record[i]);
+    }
+    segment.putInt(offset, record.length);
+
+    written = segmentStart + offset + RECORD_HEADER_BYTES + record.length;
+  }
+
+  private void internal_mapSegment(long start) throws IOException {
+    if (segment != null) {
+      // a sync only forces the current segment
+      segment.force();
+    }
+
+    segment = channel.map(FileChannel.MapMode.READ_WRITE, start, SEGMENT_BYTES);
+    segmentStart = start;
+
+    // the file just grew
+    channel.force(true);
+  }
+
+  /**
+   * write a snapshot of storage and start a new journal
+   */
+  private void internal_compact() throws IOException {
+    long start = System.currentTimeMillis();
+    Collection<RegistrationData> registrations = storage.getAllRegistrations();
+
+    File snapshot = new File(directory, SNAPSHOT_FILE);
+    File tempSnapshot = new File(directory, SNAPSHOT_FILE + ".tmp");
+    try (FileOutputStream fileOut = new FileOutputStream(tempSnapshot);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 1024 * 1024))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+
+      CRC32 crc = new CRC32();
+      for (RegistrationData data : registrations) {
+        byte[] record = add(data);
+        crc.reset();
+        crc.update(record);
+        out.writeInt(record.length);
+        out.writeInt((int)crc.getValue());
+        out.write(record);
+      }
+
+      out.writeInt(0);
+      out.flush();
+      fileOut.getChannel().force(true);
+    }
+
+    Files.move(tempSnapshot.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+    // new empty journal, a crash before this just replays the old one over the new snapshot
+    if (channel != null) {
+      channel.close();
+    }
+
+    channel = FileChannel.open(new File(directory, JOURNAL_FILE).toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    segment = null;
+    internal_mapSegment(0);
+    segment.putInt(0, MAGIC);
+    segment.putInt(4, VERSION);
+    segment.force();
+
+    // everything in the old journal is in the snapshot now
+    base += written;
+    written = HEADER_BYTES;
+    durable = base + written;
+
+    logger.info("Wrote registration snapshot, registrations=" + registrations.size() + ", millis=" + (System.currentTimeMillis() - start));
+  }
+
+  /**
+   * @param file snapshot or journal
+   * @param segmented true for the journal, whose records don't span segments
+   * @return records applied
+   */
+  private int internal_replay(File file, boolean segmented) throws IOException {
+    if (!file.exists()) {
+      return 0;
+    }
+
+    int records = 0;
+    try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      long size = in.size();
+      if (size < HEADER_BYTES) {
+        return 0;
+      }
+
+      long windowStart = 0;
+      MappedByteBuffer window = in.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, READ_WINDOW_BYTES));
+      if (window.getInt(0) != MAGIC || window.getInt(4) != VERSION) {
+        throw new RuntimeException("Not a registration " + (segmented ? "journal" : "snapshot") + ": " + file);
+      }
+
+      long position = HEADER_BYTES;
+      while (position + RECORD_HEADER_BYTES <= size) {
+        if (position + RECORD_HEADER_BYTES > windowStart + window.limit()) {
+          windowStart = position;
+          window = in.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(size - windowStart, READ_WINDOW_BYTES));
+        }
+
+        int offset = (int)(position - windowStart);
+        int length = window.getInt(offset);
+        if (length == 0) {
+          break;
+        }
+
+        if (length == NEXT_SEGMENT && segmented) {
+          position = (position / SEGMENT_BYTES + 1) * SEGMENT_BYTES;
+          continue;
+        }
+
+        if (length < 0 || position + RECORD_HEADER_BYTES + length > size) {
+          logger.warn("Truncated record in " + file + " at " + position + ", ignoring the rest");
+          break;
+        }
+
+        if (offset + RECORD_HEADER_BYTES + length > window.limit()) {
+          windowStart = position;
+          window = in.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(size - windowStart, READ_WINDOW_BYTES));
+          offset = 0;
+        }
+
+        byte[] record = new byte[length];
+        ByteBuffer recordBuffer = window.duplicate();
+        recordBuffer.position(offset + RECORD_HEADER_BYTES);
+        recordBuffer.get(record);
+
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        if ((int)crc.getValue() != window.getInt(offset + 4)) {
+          logger.warn("Corrupt record in " + file + " at " + position + ", ignoring the rest");
+          break;
+        }
+
+        internal_apply(record);
+        records++;
+        position += RECORD_HEADER_BYTES + length;
+      }
+    }
+
+    return records;
+  }
+
+  private void internal_apply(byte[] record) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+    byte type = in.readByte();
+    if (type == ADD) {
+      storage.applyRegistration(internal_readRegistration(in));
+    } else if (type == SIGNATURE_COUNT) {
+      ByteArray credentialId = internal_readBytes(in);
+      ByteArray userHandle = internal_readBytes(in);
+      long signatureCount = in.readLong();
+      try {
+        storage.applySignatureCount(credentialId, userHandle, signatureCount);
+      } catch (RuntimeException e) {
+        logger.warn("Skipping signature count for a credential that isn't registered, credentialId=" + credentialId.getBase64Url());
+      }
+    } else {
+      throw new RuntimeException("Unknown record type " + type);
+    }
+  }
+
+  private static void internal_writeRegistration(DataOutputStream out, RegistrationData data) throws IOException {
+    internal_writeString(out, data.getCredentialTypeString());
+    internal_writeBytes(out, data.getCredentialId());
+    internal_writeBytes(out, data.getPublicKeyCose());
+    out.writeLong(data.getSignatureCount());
+    internal_writeString(out, data.getAttestationTypeString());
+    internal_writeString(out, data.getNetid());
+    internal_writeBytes(out, data.getUserHandle());
+    out.writeLong(data.getRegistrationTime() == null ? Long.MIN_VALUE : data.getRegistrationTime().getTime());
+    internal_writeString(out, data.getNickname());
+  }
+
+  private static RegistrationData internal_readRegistration(DataInputStream in) throws IOException {
+    RegistrationData.Builder builder = RegistrationData.builder()
+        .credentialTypeString(internal_readString(in))
+        .credentialId(internal_readBytes(in))
+        .publicKeyCose(internal_readBytes(in))
+        .signatureCount(in.readLong())
+        .attestationTypeString(internal_readString(in))
+        .netid(internal_readString(in))
+        .userHandle(internal_readBytes(in));
+
+    long registrationTime = in.readLong();
+    if (registrationTime != Long.MIN_VALUE) {
+      builder.registrationTime(new Date(registrationTime));
+    }
+
+    return builder.nickname(internal_readString(in)).build();
+  }
+
+  private static void internal_writeString(DataOutputStream out, String value) throws IOException {
+    out.writeBoolean(value != null);
+    if (value != null) {
+      out.writeUTF(value);
+    }
+  }
+
+  private static String internal_readString(DataInputStream in) throws IOException {
+    return in.readBoolean() ? in.readUTF() : null;
+  }
+
+  private static void internal_writeBytes(DataOutputStream out, ByteArray value) throws IOException {
+    out.writeInt(value.size());
+    out.write(value.getBytes());
+  }
+
+  private static ByteArray internal_readBytes(DataInputStream in) throws IOException {
+    byte[] value = new byte[in.readInt()];
+    in.readFully(value);
+    return new ByteArray(value);
+  }
+
+  /**
+   * the in memory storage, as the journal loads and snapshots it
+   */
+  interface Store {
+
+    /**
+     * @param data registration to add to memory
+     */
+    void applyRegistration(RegistrationData data);
+
+    /**
+     * @param credentialId
+     * @param userHandle
+     * @param signatureCount count to set in memory
+     * @return false if it was unchanged
+     */
+    boolean applySignatureCount(ByteArray credentialId, ByteArray userHandle, long signatureCount);
+
+    /**
+     * @return every registration
+     */
+    Collection<RegistrationData> getAllRegistrations();
+  }
+}
@@ -16,18 +16,15 @@
 
 package edu.duke.oit.idms.idp.authn.webauthn;
 
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
 import java.security.SecureRandom;
-import java.util.Arrays;
-import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Optional;
-import java.util.Properties;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
@@ -38,20 +35,17 @@ import javax.servlet.http.HttpServletResponse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.fasterxml.jackson.annotation.JsonInclude.Include;
-import com.fasterxml.jackson.databind.SerializationFeature;
-import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
+import com.codahale.metrics.Timer;
+import com.fasterxml.jackson.databind.ObjectReader;
 import com.yubico.webauthn.AssertionRequest;
 import com.yubico.webauthn.FinishRegistrationOptions;
 import com.yubico.webauthn.RegistrationResult;
 import com.yubico.webauthn.RelyingParty;
 import com.yubico.webauthn.StartAssertionOptions;
 import com.yubico.webauthn.StartRegistrationOptions;
-import com.yubico.webauthn.data.AttestationConveyancePreference;
 import com.yubico.webauthn.data.AuthenticatorSelectionCriteria;
 import com.yubico.webauthn.data.ByteArray;
 import com.yubico.webauthn.data.PublicKeyCredentialCreationOptions;
-import com.yubico.webauthn.data.RelyingPartyIdentity;
 import com.yubico.webauthn.data.UserIdentity;
 import com.yubico.webauthn.data.UserVerificationRequirement;
 
@@ -68,46 +62,34 @@ public class RegistrationServlet extends HttpServlet {
   
   private com.fasterxml.jackson.databind.ObjectMapper jsonMapper;
   
+  private ObjectReader registrationResponseReader;
+  
+  private PendingCeremonyStore pendingCeremonyStore;
+  
+  private RegistrationStore registrationStore;
+  
+  private int maxPayloadBytes;
+  
+  private CeremonyLimiter limiter;
+  
   private static final SecureRandom random = new SecureRandom();
 
   public void init(ServletConfig config) throws ServletException {
     super.init(config);
 
-    Properties prop = new Properties();
-    try {
-      prop.load(new FileInputStream(new File("/opt/shibboleth-idp/conf/authn/WebAuthn.properties")));
-    } catch (Exception e) {
-      throw new RuntimeException("Unable to load /opt/shibboleth-idp/conf/authn/WebAuthn.properties", e);
-    }
-    
-    String relyingPartyId = prop.getProperty("idp.WebAuthn.relyingParty.id");
-    String relyingPartyOrigin = prop.getProperty("idp.WebAuthn.relyingParty.origin");
-    
-    if (relyingPartyId == null || relyingPartyOrigin == null) {
-      throw new RuntimeException("Relying party id and origin must be set");
-    }
+    // same relying party and json mapper as the validation action
+    WebAuthnEngine engine = WebAuthnEngine.getInstance();
+    rp = engine.getRelyingParty();
+    jsonMapper = engine.getJsonMapper();
+    registrationResponseReader = engine.getRegistrationResponseReader();
+    registrationStore = engine.getRegistrationStore();
     
-    jsonMapper = new com.fasterxml.jackson.databind.ObjectMapper()
-        .configure(SerializationFeature.FAIL_ON_EMPTY_BEANS, false)
-        .setSerializationInclusion(Include.NON_ABSENT)
-        .registerModule(new Jdk8Module());
+    // pending ceremonies are kept here rather than in the session
+    pendingCeremonyStore = PendingCeremonyStoreFactory.getPendingCeremonyStore(config.getServletContext());
     
-    RelyingPartyIdentity rpIdentity = RelyingPartyIdentity.builder()
-        .id(relyingPartyId)
-        .name("Shibboleth Authentication")
-        .build();
+    limiter = CeremonyLimiter.getInstance();
     
-    rp = RelyingParty.builder()
-        .identity(rpIdentity)
-        .credentialRepository(RegistrationStorage.getInstance())
-        .origins(new HashSet<>(Arrays.asList(new String[] { relyingPartyOrigin })))
-        .attestationConveyancePreference(Optional.of(AttestationConveyancePreference.DIRECT))
-       // .metadataService(Optional.of(metadataService)) // TODO
-        .allowUnrequestedExtensions(true)
-        .allowUntrustedAttestation(true)
-        .validateSignatureCounter(true)
-       // .appId(appId)
-        .build();
+    maxPayloadBytes = WebAuthnProperties.getInstance().getPropertyInt("idp.WebAuthn.registration.maxPayloadBytes", false, 65536);
   }
   
   /**
@@ -120,6 +102,48 @@ public class RegistrationServlet extends HttpServlet {
   }
   
   protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+    String type = request.getParameter("type");
+    if (!"start".equals(type) && !"finish".equals(type) && !"authstart".equals(type)) {
+      throw new RuntimeException("Unexpected");
+    }
+    
+    // turned away fast when too many ceremonies are running or waiting, see CeremonyLimiter
+    try {
+      limiter.acquire();
+    } catch (CeremonyRejectedException e) {
+      log.warn("Rejecting registration " + type + ", " + e.getMessage());
+      response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+      response.setHeader("Retry-After", "1");
+      response.setContentType("application/json");
+      response.setCharacterEncoding("UTF-8");
+      response.getWriter().print("{\"success\":false,\"retry\":true}");
+      return;
+    }
+    
+    // timer and failure counters per branch, see WebAuthnMetrics
+    String phase = "registration." + type;
+    Timer.Context timer = WebAuthnMetrics.time(phase);
+    
+    // the branches fill in the rest of the event
+    WebAuthnEvents.CeremonyEvent event = new WebAuthnEvents.CeremonyEvent();
+    event.begin();
+    try {
+      internal_doPost(request, response, event);
+    } catch (IOException | ServletException | RuntimeException e) {
+      WebAuthnMetrics.failure(phase, e);
+      throw e;
+    } finally {
+      limiter.release();
+      timer.stop();
+      
+      if (event.shouldCommit()) {
+        event.phase = phase;
+        event.commit();
+      }
+    }
+  }
+  
+  private void internal_doPost(HttpServletRequest request, HttpServletResponse response, WebAuthnEvents.CeremonyEvent event) throws ServletException, IOException {
     
     PrintWriter out = response.getWriter();
     response.setContentType("application/json");
@@ -134,10 +158,7 @@ public class RegistrationServlet extends HttpServlet {
       byte[] newUserHandle = new byte[64];
       random.nextBytes(newUserHandle);
       
-      byte[] requestId = new byte[64];
-      random.nextBytes(requestId);
-
-      Optional<ByteArray> existingUserHandle = RegistrationStorage.getInstance().getUserHandleForUsername(username);
+      Optional<ByteArray> existingUserHandle = registrationStore.getUserHandleForUsername(username);
       
       PublicKeyCredentialCreationOptions registrationRequest = rp.startRegistration(
           StartRegistrationOptions.builder()
@@ -154,51 +175,55 @@ public class RegistrationServlet extends HttpServlet {
               )
           .build());
 
+      ByteArray requestId = pendingCeremonyStore.put(new PendingRegistration(username, nickname, registrationRequest));
+      
+      if (event.isEnabled()) {
+        event.usernameHash = WebAuthnEvents.usernameHash(username);
+        event.credentialCount = registrationRequest.getExcludeCredentials().map(credentials -> credentials.size()).orElse(0);
+      }
+
       Map<String, Object> registrationRequestWrapper = new LinkedHashMap<String, Object>();
       registrationRequestWrapper.put("username", username);
       registrationRequestWrapper.put("credentialNickname", nickname);
-      registrationRequestWrapper.put("requestId", new ByteArray(requestId));
+      registrationRequestWrapper.put("requestId", requestId);
       registrationRequestWrapper.put("publicKeyCredentialCreationOptions", registrationRequest);
       
-      request.getSession().setAttribute("REQUESTID_" + new ByteArray(requestId).getBase64Url(), registrationRequestWrapper);
-      
       String json = jsonMapper.writeValueAsString(registrationRequestWrapper);
 
       log.info("Add credential request for username=" + username + ", success=" + json);
       String finalJson = "{\"success\":true,\"request\":" + json + "}";
       out.print(finalJson);
       out.flush();
+      event.success = true;
     } else if (request.getParameter("type").equals("finish")) {
-      StringBuffer buffer = new StringBuffer();
-      String line = null;
       try {
-        BufferedReader reader = request.getReader();
-        while ((line = reader.readLine()) != null) {
-          buffer.append(line);
+        if (request.getContentLengthLong() > maxPayloadBytes) {
+          throw new RuntimeException("Registration response too large, contentLength=" + request.getContentLengthLong() + ", maxPayloadBytes=" + maxPayloadBytes);
         }
-      } catch (Exception e) {
-        throw new RuntimeException(e);
-      }
-      
-      String incomingJson = buffer.toString();
 
-      try {
-        RegistrationResponse registrationResponse = jsonMapper.readValue(incomingJson, RegistrationResponse.class);
+        // parsed as it streams in, the content length may be missing (chunked) or wrong so the stream is capped too;
+        // the bytes are kept so the response is stored as posted
+        RegistrationResponse registrationResponse;
+        ByteArrayOutputStream posted = new ByteArrayOutputStream(request.getContentLength() > 0 ? request.getContentLength() : 4096);
+        try (InputStream in = new BoundedInputStream(request.getInputStream(), maxPayloadBytes, posted)) {
+          registrationResponse = registrationResponseReader.readValue(in);
+        }
 
-        @SuppressWarnings("unchecked")
-        Map<String, Object> registrationRequestWrapper = (Map<String, Object>)request.getSession().getAttribute("REQUESTID_" + registrationResponse.getRequestId().getBase64Url());
+        PendingRegistration pendingRegistration = pendingCeremonyStore.take(registrationResponse.getRequestId(), PendingRegistration.class);
                 
-        if (registrationRequestWrapper == null) {
+        if (pendingRegistration == null) {
           throw new RuntimeException("Registration not in progress: " + registrationResponse.getRequestId().getBase64Url());
         }
 
-        String username = (String)registrationRequestWrapper.get("username");
+        String username = pendingRegistration.getUsername();
         log.info("Add credential finish for username=" + username);
         
-        request.getSession().removeAttribute("REQUESTID_" + registrationResponse.getRequestId().getBase64Url());
+        if (event.isEnabled()) {
+          event.usernameHash = WebAuthnEvents.usernameHash(username);
+        }
         
-        PublicKeyCredentialCreationOptions publicKeyCredentialCreationOptions = (PublicKeyCredentialCreationOptions)registrationRequestWrapper.get("publicKeyCredentialCreationOptions");
-        String credentialNickname = (String)registrationRequestWrapper.get("credentialNickname");
+        PublicKeyCredentialCreationOptions publicKeyCredentialCreationOptions = pendingRegistration.getPublicKeyCredentialCreationOptions();
+        String credentialNickname = pendingRegistration.getCredentialNickname();
         
         RegistrationResult registration = rp.finishRegistration(
             FinishRegistrationOptions.builder()
@@ -206,7 +231,7 @@ public class RegistrationServlet extends HttpServlet {
             .response(registrationResponse.getCredential())
             .build());
 
-        RegistrationStorage.getInstance().addRegistration(username, registration, publicKeyCredentialCreationOptions.getUser(), registrationResponse.getCredential().getResponse(), credentialNickname, incomingJson);
+        registrationStore.addRegistration(username, registration, publicKeyCredentialCreationOptions.getUser(), registrationResponse.getCredential().getResponse(), credentialNickname, new String(posted.toByteArray(), StandardCharsets.UTF_8));
         
         log.info("Add credential finish for username=" + username + ", credentialNickname=" + credentialNickname);
         
@@ -215,7 +240,9 @@ public class RegistrationServlet extends HttpServlet {
         String finalJson = "{\"success\":true}";
         out.print(finalJson);
         out.flush();        
+        event.success = true;
       } catch (Exception e) {
+        WebAuthnMetrics.failure("registration.finish", e);
         response.setStatus(400);
         
         log.error("Add credential finish failed with failure=" + e.getMessage(), e);
@@ -227,28 +254,31 @@ public class RegistrationServlet extends HttpServlet {
       String uid = request.getParameter("username").trim();
       log.info("WebAuthn authentication start request for uid=" + uid);
       
-      byte[] requestId = new byte[64];
-      random.nextBytes(requestId);
-
       AssertionRequest assertionRequest = rp.startAssertion(
           StartAssertionOptions.builder()
           .username(uid)
           .userVerification(UserVerificationRequirement.REQUIRED)
           .build());
       
+      ByteArray requestId = pendingCeremonyStore.put(assertionRequest);
+      
+      if (event.isEnabled()) {
+        event.usernameHash = WebAuthnEvents.usernameHash(uid);
+        event.credentialCount = assertionRequest.getPublicKeyCredentialRequestOptions().getAllowCredentials().map(credentials -> credentials.size()).orElse(0);
+      }
+      
       Map<String, Object> assertionRequestWrapper = new LinkedHashMap<String, Object>();
       assertionRequestWrapper.put("username", uid);
-      assertionRequestWrapper.put("requestId", new ByteArray(requestId));
+      assertionRequestWrapper.put("requestId", requestId);
       assertionRequestWrapper.put("publicKeyCredentialRequestOptions", assertionRequest.getPublicKeyCredentialRequestOptions());
       
-      request.getSession().setAttribute("REQUESTID_" + new ByteArray(requestId).getBase64Url(), assertionRequest);
-      
       String json = jsonMapper.writeValueAsString(assertionRequestWrapper);
       
       log.info("WebAuthn authentication start request for uid=" + uid + ", success=" + json);
       String finalJson = "{\"success\":true,\"request\":" + json + "}";
       out.print(finalJson);
       out.flush();
+      event.success = true;
     } else {
       throw new RuntimeException("Unexpected");
     }
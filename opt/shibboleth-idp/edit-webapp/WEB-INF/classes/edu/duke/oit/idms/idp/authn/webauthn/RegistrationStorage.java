@@ -17,7 +17,6 @@
 package edu.duke.oit.idms.idp.authn.webauthn;
 
 import com.yubico.webauthn.AssertionResult;
-import com.yubico.webauthn.CredentialRepository;
 import com.yubico.webauthn.RegisteredCredential;
 import com.yubico.webauthn.RegistrationResult;
 import com.yubico.webauthn.data.AuthenticatorAttestationResponse;
@@ -25,32 +24,61 @@ import com.yubico.webauthn.data.ByteArray;
 import com.yubico.webauthn.data.PublicKeyCredentialDescriptor;
 import com.yubico.webauthn.data.UserIdentity;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashSet;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Lock;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.util.concurrent.Striped;
+
 /**
+ * In memory registration storage.  Registrations are indexed by credential id, user handle and netid so that
+ * every lookup is a single map access.  Readers never take a lock; each key maps to an immutable list that
+ * writers swap out atomically since a user only ever has a handful of credentials and writes are rare
+ * compared to reads.  Writers for the same user handle are serialized by a striped lock so that the credential
+ * id and netid indexes always hold the same version of a registration.
+ * 
  * @author shilen
  */
-public class RegistrationStorage implements CredentialRepository {
+public class RegistrationStorage implements RegistrationStore {
 
   private Logger logger = LoggerFactory.getLogger(RegistrationStorage.class);
   
-  private Set<RegistrationData> storage = Collections.synchronizedSet(new HashSet<RegistrationData>());
+  /** registrations keyed by credential id.  more than one user could in theory register the same credential id */
+  private final ConcurrentMap<ByteArray, List<RegistrationData>> registrationsByCredentialId = new ConcurrentHashMap<ByteArray, List<RegistrationData>>();
+
+  /** registrations keyed by netid */
+  private final ConcurrentMap<String, List<RegistrationData>> registrationsByUsername = new ConcurrentHashMap<String, List<RegistrationData>>();
+
+  /** netid keyed by user handle */
+  private final ConcurrentMap<ByteArray, String> usernamesByUserHandle = new ConcurrentHashMap<ByteArray, String>();
+
+  /** user handle keyed by netid */
+  private final ConcurrentMap<String, ByteArray> userHandlesByUsername = new ConcurrentHashMap<String, ByteArray>();
+
+  /** writers lock the user handle's stripe, readers take no lock */
+  private final Striped<Lock> writeLocks = Striped.lock(64);
+
 
+  /** snapshot and journal on local disk, null if registrations are only kept in memory */
+  private final RegistrationJournal journal;
 
   /**
-   * @return instance
+   * @return instance, persisted to idp.WebAuthn.storage.directory if that's set
    */
   public synchronized static RegistrationStorage getInstance() {
     if (instance == null) {
       try {
-        instance = new RegistrationStorage();
+        instance = new RegistrationStorage(RegistrationStoreFactory.getConfiguredJournal());
       } catch (Exception e) {
         throw new RuntimeException(e);
       }
@@ -61,6 +89,39 @@ public class RegistrationStorage implements CredentialRepository {
   
   private static RegistrationStorage instance = null;
   
+  /**
+   * registrations in memory only
+   */
+  public RegistrationStorage() {
+    this(null);
+  }
+  
+  /**
+   * @param journal loads the registrations it has, then keeps every change, may be null
+   */
+  public RegistrationStorage(RegistrationJournal journal) {
+    this.journal = journal;
+    if (journal != null) {
+      journal.open(new RegistrationJournal.Store() {
+
+        @Override
+        public void applyRegistration(RegistrationData data) {
+          RegistrationStorage.this.applyRegistration(data);
+        }
+
+        @Override
+        public boolean applySignatureCount(ByteArray credentialId, ByteArray userHandle, long signatureCount) {
+          return RegistrationStorage.this.applySignatureCount(credentialId, userHandle, signatureCount);
+        }
+
+        @Override
+        public Collection<RegistrationData> getAllRegistrations() {
+          return RegistrationStorage.this.getAllRegistrations();
+        }
+      });
+    }
+  }
+  
   /**
    * @param username
    * @param registration 
@@ -69,39 +130,86 @@ public class RegistrationStorage implements CredentialRepository {
    * @param nickname 
    * @param registrationResponse 
    */
+  @Override
   public void addRegistration(String username, RegistrationResult registration, UserIdentity userIdentity, AuthenticatorAttestationResponse authenticatorAttestationResponse, String nickname, String registrationResponse) {
     long signatureCounter = authenticatorAttestationResponse.getAttestation().getAuthenticatorData().getSignatureCounter();
     logger.info("Called addRegistration, username=" + username + ", registration=" + registration + ", userIdentity=" + userIdentity + ", signatureCounter=" + signatureCounter + ", nickname=" + nickname);
-    
-    if (!userIdentity.getName().equals(username)) {
-      throw new RuntimeException("Username mismatch, userIdentity.getName()=" + userIdentity.getName() + ", username=" + username);
+
+    addRegistration(RegistrationData.fromRegistration(username, registration, userIdentity, authenticatorAttestationResponse, nickname));
+  }
+
+  /**
+   * @param data registration built by the caller, e.g. when loading registrations in bulk
+   */
+  public void addRegistration(RegistrationData data) {
+    if (journal == null) {
+      applyRegistration(data);
+      return;
     }
+    
+    journal.sync(journal.write(RegistrationJournal.add(data), () -> {
+      applyRegistration(data);
+      return true;
+    }));
+  }
 
-    RegistrationData data = new RegistrationData();
-    data.setAttestationTypeString(registration.getAttestationType().name());
-    data.setCredentialIdBase64(registration.getKeyId().getId().getBase64Url());
-    data.setCredentialTypeString(registration.getKeyId().getType().name());
-    data.setNetid(username);
-    data.setNickname(nickname);
-    data.setPublicKeyCoseBase64(registration.getPublicKeyCose().getBase64Url());
-    data.setUserHandleBase64(userIdentity.getId().getBase64Url());
-    data.setSignatureCount(signatureCounter);
+  /**
+   * add to memory only, see {@link RegistrationJournal}
+   * 
+   * @param data
+   */
+  private void applyRegistration(RegistrationData data) {
+    String username = data.getNetid();
+    ByteArray existingUserHandle = userHandlesByUsername.putIfAbsent(username, data.getUserHandle());
+    if (existingUserHandle != null && !existingUserHandle.equals(data.getUserHandle())) {
+      throw new RuntimeException("User handle mismatch, userHandle1=" + existingUserHandle.getBase64Url() + ", userHandle2=" + data.getUserHandle().getBase64Url());
+    }
+    
+    usernamesByUserHandle.putIfAbsent(data.getUserHandle(), username);
+    
+    Lock lock = writeLocks.get(data.getUserHandle());
+    lock.lock();
+    try {
+      registrationsByUsername.compute(username, (k, registrations) -> internal_replace(registrations, data));
+      
+      // index by credential id last so that an assertion can't find the registration before the rest is in place
+      registrationsByCredentialId.compute(data.getCredentialId(), (k, registrations) -> internal_replace(registrations, data));
+    } finally {
+      lock.unlock();
+    }
+  }
 
-    synchronized (storage) {
-      storage.add(data);
+  /**
+   * @param registrations current registrations for a key, may be null
+   * @param data registration to add, replacing any registration of the same credential for the same user handle
+   * @return new immutable list
+   */
+  private static List<RegistrationData> internal_replace(List<RegistrationData> registrations, RegistrationData data) {
+    List<RegistrationData> result = new ArrayList<RegistrationData>();
+    boolean replaced = false;
+    if (registrations != null) {
+      for (RegistrationData registration : registrations) {
+        if (registration.matches(data.getCredentialId(), data.getUserHandle())) {
+          result.add(data);
+          replaced = true;
+        } else {
+          result.add(registration);
+        }
+      }
     }
+    
+    if (!replaced) {
+      result.add(data);
+    }
+    
+    return Collections.unmodifiableList(result);
   }
 
   @Override
   public Set<PublicKeyCredentialDescriptor> getCredentialIdsForUsername(String username) {
     logger.info("Called getCredentialIdsForUsername, username=" + username);
 
-    Set<PublicKeyCredentialDescriptor> credentialIds = new LinkedHashSet<PublicKeyCredentialDescriptor>();
-    
-    Collection<RegistrationData> registrations = getRegistrationsByUsername(username);
-    for (RegistrationData registration : registrations) {
-      credentialIds.add(registration.getPublicKeyCredentialDescriptor());
-    }
+    Set<PublicKeyCredentialDescriptor> credentialIds = getUserRegistrations(username).getCredentialDescriptors();
     
     logger.info("Called getCredentialIdsForUsername, username=" + username + ", returning " + credentialIds.size() + " results");
 
@@ -110,21 +218,32 @@ public class RegistrationStorage implements CredentialRepository {
 
   /**
    * @param username
-   * @return collection
+   * @return user handle and all registrations for the user
    */
+  public UserRegistrations getUserRegistrations(String username) {
+    logger.info("Called getUserRegistrations, username=" + username);
+    if (username == null || username.isEmpty()) {
+      throw new RuntimeException("No username");
+    }
+    
+    ByteArray userHandle = userHandlesByUsername.get(username);
+    if (userHandle == null) {
+      return UserRegistrations.empty(username);
+    }
+    
+    return new UserRegistrations(username, userHandle, getRegistrationsByUsername(username));
+  }
+
+  @Override
   public Collection<RegistrationData> getRegistrationsByUsername(String username) {
     logger.info("Called getRegistrationsByUsername, username=" + username);
     if (username == null || username.isEmpty()) {
       throw new RuntimeException("No username");
     }
     
-    Set<RegistrationData> registrations = new LinkedHashSet<RegistrationData>();
-    synchronized (storage) {
-      for (RegistrationData registration : storage) {
-        if (registration.getNetid().equals(username)) {
-          registrations.add(registration);
-        }
-      }
+    List<RegistrationData> registrations = registrationsByUsername.get(username);
+    if (registrations == null) {
+      return Collections.emptyList();
     }
     
     return registrations;
@@ -139,15 +258,7 @@ public class RegistrationStorage implements CredentialRepository {
       throw new RuntimeException("No userHandle");
     }
     
-    synchronized (storage) {
-      for (RegistrationData registration : storage) {
-        if (registration.getUserHandleBase64().equals(userHandle.getBase64Url())) {
-          return Optional.of(registration.getNetid());
-        }
-      }
-    }
-    
-    return Optional.empty();
+    return Optional.ofNullable(usernamesByUserHandle.get(userHandle));
   }
 
   @Override
@@ -159,15 +270,7 @@ public class RegistrationStorage implements CredentialRepository {
       throw new RuntimeException("No username");
     }
     
-    synchronized (storage) {
-      for (RegistrationData registration : storage) {
-        if (username.equals(registration.getNetid())) {
-          return Optional.of(registration.getUserHandle());
-        }
-      }
-    }
-    
-    return Optional.empty();
+    return Optional.ofNullable(userHandlesByUsername.get(username));
   }
 
   /**
@@ -181,22 +284,85 @@ public class RegistrationStorage implements CredentialRepository {
     
     logger.info("Called updateSignatureCount, result=" + result + ", netid=" + result.getUsername() + ", credentialId=" + result.getCredentialId().getBase64Url());    
 
-    synchronized (storage) {
-      boolean found = false;
-      for (RegistrationData registration : storage) {
-        if (registration.getUserHandleBase64().equals(result.getUserHandle().getBase64Url()) && registration.getCredentialIdBase64().equals(result.getCredentialId().getBase64Url())) {
-          found = true;
-          registration.setSignatureCount(result.getSignatureCount());
-          break;
+    updateSignatureCount(result.getCredentialId(), result.getUserHandle(), result.getSignatureCount());
+  }
+
+  @Override
+  public void updateSignatureCount(ByteArray credentialId, ByteArray userHandle, long signatureCount) {
+    if (journal == null) {
+      applySignatureCount(credentialId, userHandle, signatureCount);
+      return;
+    }
+    
+    journal.sync(journal.write(RegistrationJournal.signatureCount(credentialId, userHandle, signatureCount),
+        () -> applySignatureCount(credentialId, userHandle, signatureCount)));
+  }
+
+  /**
+   * update memory only, see {@link RegistrationJournal}
+   * 
+   * @param credentialId
+   * @param userHandle
+   * @param signatureCount kept only if it's higher than the stored count, concurrent logins can finish out of order
+   * @return false if the count was unchanged
+   */
+  private boolean applySignatureCount(ByteArray credentialId, ByteArray userHandle, long signatureCount) {
+    // [0] current, [1] updated
+    RegistrationData[] found = new RegistrationData[2];
+    
+    Lock lock = writeLocks.get(userHandle);
+    lock.lock();
+    try {
+      registrationsByCredentialId.computeIfPresent(credentialId, (k, registrations) -> {
+        for (RegistrationData registration : registrations) {
+          if (registration.matches(credentialId, userHandle)) {
+            found[0] = registration;
+            found[1] = registration.withSignatureCount(Math.max(registration.getSignatureCount(), signatureCount));
+            return found[1] == registration ? registrations : internal_replace(registrations, found[1]);
+          }
         }
+        
+        return registrations;
+      });
+      
+      if (found[1] == null) {
+        throw new RuntimeException("No rows updated, credential not registered to user?? userHandle=" + userHandle.getBase64Url() + ", credentialId=" + credentialId.getBase64Url());
       }
       
-      if (!found) {
-        throw new RuntimeException("No rows updated, credential not registered to user?? result=" + result + ", netid=" + result.getUsername() + ", credentialId=" + result.getCredentialId().getBase64Url());
+      if (found[1] == found[0]) {
+        // count unchanged (e.g. authenticators that always report 0) or already higher, nothing to write
+        return false;
       }
+      
+      // same version in the netid index, addRegistration for this user handle can't interleave
+      registrationsByUsername.compute(found[1].getNetid(), (k, existing) -> internal_replace(existing, found[1]));
+    } finally {
+      lock.unlock();
+    }
+
+    logger.info("Updating signature count to " + found[1].getSignatureCount() + " for netid=" + found[1].getNetid() + ", credentialId=" + credentialId.getBase64Url());  
+    return true;
+  }
+
+  @Override
+  public boolean hasRegistered(String netid) {
+    if (netid == null || netid.isEmpty()) {
+      return false;
     }
+    
+    return userHandlesByUsername.containsKey(netid);
+  }
 
-    logger.info("Updating signature count to " + result.getSignatureCount() + " for netid=" + result.getUsername() + ", credentialId=" + result.getCredentialId().getBase64Url());  
+  /**
+   * @return every registration, e.g. for a snapshot
+   */
+  private Collection<RegistrationData> getAllRegistrations() {
+    List<RegistrationData> all = new ArrayList<RegistrationData>();
+    for (List<RegistrationData> registrations : registrationsByCredentialId.values()) {
+      all.addAll(registrations);
+    }
+    
+    return all;
   }
 
   @Override
@@ -205,7 +371,7 @@ public class RegistrationStorage implements CredentialRepository {
     Set<RegisteredCredential> credentials = lookupAll(credentialId);
 
     for (RegisteredCredential credential : credentials) {
-      if (userHandle != null && userHandle.getBase64Url() != null && !userHandle.getBase64Url().isEmpty() && !userHandle.getBase64Url().equals(credential.getUserHandle().getBase64Url())) {
+      if (userHandle != null && !userHandle.isEmpty() && !userHandle.equals(credential.getUserHandle())) {
         continue;
       }
       
@@ -225,20 +391,14 @@ public class RegistrationStorage implements CredentialRepository {
       throw new RuntimeException("No credentialId");
     }
     
-    Set<RegistrationData> registrations = new LinkedHashSet<RegistrationData>();
-    synchronized (storage) {
-      for (RegistrationData registration : storage) {
-        if (registration.getCredentialIdBase64().equals(credentialId.getBase64Url())) {
-          registrations.add(registration);
-        }
-      }
+    List<RegistrationData> registrations = registrationsByCredentialId.get(credentialId);
+    if (registrations == null) {
+      registrations = Collections.emptyList();
     }
     
     Set<RegisteredCredential> registeredCredentials = new LinkedHashSet<RegisteredCredential>();
     for (RegistrationData registration : registrations) {
-      RegisteredCredential registeredCredential = registration.getRegisteredCredential();
-      
-      registeredCredentials.add(registeredCredential);
+      registeredCredentials.add(registration.getRegisteredCredential());
     }
 
     logger.info("Called lookupAll, credentialId=" + credentialId + ", returning " + registeredCredentials.size() + " results");
@@ -0,0 +1,82 @@
+/**
+ * Copyright 2019 Duke University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package edu.duke.oit.idms.idp.authn.webauthn;
+
+import java.util.Collection;
+
+import com.yubico.webauthn.AssertionResult;
+import com.yubico.webauthn.CredentialRepository;
+import com.yubico.webauthn.RegistrationResult;
+import com.yubico.webauthn.data.AuthenticatorAttestationResponse;
+import com.yubico.webauthn.data.ByteArray;
+import com.yubico.webauthn.data.UserIdentity;
+
+/**
+ * Where registrations are kept: the lookups the relying party makes, plus the writes and reads the registration
+ * servlet and the validation action make.  The implementation is chosen in WebAuthn.properties, see
+ * {@link RegistrationStoreFactory}.
+ *
+ * @author shilen
+ */
+public interface RegistrationStore extends CredentialRepository {
+
+  /**
+   * @param username
+   * @param registration
+   * @param userIdentity
+   * @param authenticatorAttestationResponse
+   * @param nickname
+   * @param registrationResponse the response as posted, for stores that keep it
+   */
+  void addRegistration(String username, RegistrationResult registration, UserIdentity userIdentity, AuthenticatorAttestationResponse authenticatorAttestationResponse, String nickname, String registrationResponse);
+
+  /**
+   * @param credentialId
+   * @param userHandle
+   * @param signatureCount
+   */
+  void updateSignatureCount(ByteArray credentialId, ByteArray userHandle, long signatureCount);
+
+  /**
+   * @param result
+   * @param storedSignatureCount count the relying party verified against, -1 if not known
+   */
+  default void updateSignatureCount(AssertionResult result, long storedSignatureCount) {
+    if (result == null) {
+      throw new RuntimeException("No result");
+    }
+
+    if (storedSignatureCount >= 0 && result.getSignatureCount() == storedSignatureCount) {
+      // count unchanged (e.g. authenticators that always report 0), nothing to write
+      return;
+    }
+
+    updateSignatureCount(result.getCredentialId(), result.getUserHandle(), result.getSignatureCount());
+  }
+
+  /**
+   * @param username
+   * @return registrations for the user, empty if none
+   */
+  Collection<RegistrationData> getRegistrationsByUsername(String username);
+
+  /**
+   * @param netid
+   * @return true if the user has registered
+   */
+  boolean hasRegistered(String netid);
+}
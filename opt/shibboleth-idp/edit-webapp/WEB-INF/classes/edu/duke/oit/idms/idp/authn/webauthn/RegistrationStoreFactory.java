@@ -0,0 +1,96 @@
+/**
+ * Copyright 2019 Duke University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package edu.duke.oit.idms.idp.authn.webauthn;
+
+import java.io.File;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.context.ContextLoader;
+import org.springframework.web.context.WebApplicationContext;
+
+/**
+ * Builds the registration store configured in WebAuthn.properties (idp.WebAuthn.storage), shared by the
+ * registration servlet and the validation action:
+ * <ul>
+ * <li>memory: {@link RegistrationStorage}, every registration on the heap</li>
+ * <li>offHeap: {@link OffHeapCredentialRepository}, registrations outside the heap</li>
+ * <li>tiered: {@link TieredCredentialRepository}, recently active users on the heap in front of another store</li>
+ * <li>bean: a {@link RegistrationStore} bean from the IdP's Spring configuration, e.g. the database store</li>
+ * </ul>
+ * memory and offHeap are kept across restarts if idp.WebAuthn.storage.directory is set.
+ *
+ * @author shilen
+ */
+public class RegistrationStoreFactory {
+
+  private static Logger logger = LoggerFactory.getLogger(RegistrationStoreFactory.class);
+
+  private static RegistrationStore store = null;
+
+  /**
+   * @return registration store
+   */
+  public synchronized static RegistrationStore getRegistrationStore() {
+    if (store == null) {
+      String type = WebAuthnProperties.getInstance().getProperty("idp.WebAuthn.storage", false, "memory");
+      store = internal_build(type, true);
+      logger.info("Using registration store " + store.getClass().getSimpleName() + ", type=" + type);
+    }
+
+    return store;
+  }
+
+  /**
+   * @return snapshot and journal in idp.WebAuthn.storage.directory, null if that isn't set
+   */
+  public static RegistrationJournal getConfiguredJournal() {
+    WebAuthnProperties properties = WebAuthnProperties.getInstance();
+    String directory = properties.getProperty("idp.WebAuthn.storage.directory", false);
+    if (directory == null || directory.isEmpty()) {
+      return null;
+    }
+
+    long compactBytes = properties.getPropertyLong("idp.WebAuthn.storage.journal.compactMB", false, 256L) * 1024L * 1024L;
+    return new RegistrationJournal(new File(directory), compactBytes);
+  }
+
+  private static RegistrationStore internal_build(String type, boolean allowTiered) {
+    WebAuthnProperties properties = WebAuthnProperties.getInstance();
+
+    if ("memory".equals(type)) {
+      return RegistrationStorage.getInstance();
+    } else if ("offHeap".equals(type)) {
+      String arenaFile = properties.getProperty("idp.WebAuthn.storage.offHeap.arenaFile", false);
+      return new OffHeapCredentialRepository(arenaFile == null || arenaFile.isEmpty() ? null : new File(arenaFile), getConfiguredJournal());
+    } else if ("tiered".equals(type) && allowTiered) {
+      String coldType = properties.getProperty("idp.WebAuthn.storage.tiered.cold", false, "offHeap");
+      long maxHotUsers = properties.getPropertyLong("idp.WebAuthn.storage.tiered.maxHotUsers", false, 100000L);
+      return new TieredCredentialRepository(internal_build(coldType, false), maxHotUsers);
+    } else if ("bean".equals(type)) {
+      String beanId = properties.getProperty("idp.WebAuthn.storage.bean", false, "WebAuthnRegistrationStore");
+      WebApplicationContext context = ContextLoader.getCurrentWebApplicationContext();
+      if (context == null) {
+        throw new RuntimeException("No Spring context to find idp.WebAuthn.storage.bean in: " + beanId);
+      }
+
+      return context.getBean(beanId, RegistrationStore.class);
+    }
+
+    throw new RuntimeException("Unexpected idp.WebAuthn.storage: " + type);
+  }
+}
@@ -0,0 +1,107 @@
+/**
+ * Copyright 2019 Duke University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package edu.duke.oit.idms.idp.authn.webauthn;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.Instant;
+
+import net.shibboleth.utilities.java.support.security.DataSealer;
+
+import org.opensaml.storage.ReplayCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.yubico.webauthn.data.ByteArray;
+
+/**
+ * Keeps no state for a pending ceremony: the ceremony is sealed (encrypted and authenticated, with an expiry) by
+ * the IdP's {@link DataSealer} and the sealed token is the request id, so it travels with the browser.  Any node
+ * with the same sealer keys can open it.  Tokens are single use through a {@link ReplayCache}, which has to be
+ * backed by storage shared across nodes or a token can be finished once on each node.
+ *
+ * @author shilen
+ */
+public class SealedPendingCeremonyStore implements PendingCeremonyStore {
+
+  /** replay cache context */
+  public static final String REPLAY_CONTEXT = "edu.duke.oit.idms.idp.authn.webauthn.SealedCeremony";
+
+  private Logger logger = LoggerFactory.getLogger(SealedPendingCeremonyStore.class);
+
+  private final DataSealer dataSealer;
+
+  private final ReplayCache replayCache;
+
+  private final ObjectMapper jsonMapper;
+
+  private final long ttlMillis;
+
+  /**
+   * @param dataSealer
+   * @param replayCache
+   * @param jsonMapper
+   * @param ttlMillis how long a ceremony can take
+   */
+  public SealedPendingCeremonyStore(DataSealer dataSealer, ReplayCache replayCache, ObjectMapper jsonMapper, long ttlMillis) {
+    this.dataSealer = dataSealer;
+    this.replayCache = replayCache;
+    this.jsonMapper = jsonMapper;
+    this.ttlMillis = ttlMillis;
+  }
+
+  @Override
+  public ByteArray put(Object ceremony) {
+    try {
+      // the type is sealed with the ceremony so a registration can't be used as an assertion request or vice versa
+      String data = ceremony.getClass().getName() + "\n" + jsonMapper.writeValueAsString(ceremony);
+      String token = dataSealer.wrap(data, Instant.ofEpochMilli(System.currentTimeMillis() + ttlMillis));
+      return new ByteArray(token.getBytes(StandardCharsets.UTF_8));
+    } catch (Exception e) {
+      throw new RuntimeException("Unable to seal ceremony", e);
+    }
+  }
+
+  @Override
+  public <T> T take(ByteArray requestId, Class<T> type) {
+    String token = new String(requestId.getBytes(), StandardCharsets.UTF_8);
+
+    try {
+      // throws if the token was tampered with or has expired
+      String data = dataSealer.unwrap(token);
+
+      int newline = data.indexOf('\n');
+      if (newline < 0 || !type.getName().equals(data.substring(0, newline))) {
+        logger.warn("Sealed ceremony is not a " + type.getSimpleName());
+        return null;
+      }
+
+      // unexpired tokens are at most ttlMillis old, so that's as long as they need to be remembered
+      String tokenHash = new ByteArray(MessageDigest.getInstance("SHA-256").digest(requestId.getBytes())).getBase64Url();
+      if (!replayCache.check(REPLAY_CONTEXT, tokenHash, Instant.ofEpochMilli(System.currentTimeMillis() + ttlMillis))) {
+        logger.warn("Sealed ceremony already used, tokenHash=" + tokenHash);
+        return null;
+      }
+
+      return jsonMapper.readValue(data.substring(newline + 1), type);
+    } catch (Exception e) {
+      logger.warn("Unable to open sealed ceremony: " + e.getMessage());
+      return null;
+    }
+  }
+}
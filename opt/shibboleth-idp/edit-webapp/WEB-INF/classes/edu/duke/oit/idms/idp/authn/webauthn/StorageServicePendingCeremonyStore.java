@@ -0,0 +1,104 @@
+/**
+ * Copyright 2019 Duke University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package edu.duke.oit.idms.idp.authn.webauthn;
+
+import java.security.SecureRandom;
+
+import org.opensaml.storage.StorageRecord;
+import org.opensaml.storage.StorageService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.yubico.webauthn.data.ByteArray;
+
+/**
+ * Pending ceremonies in a Shibboleth {@link StorageService}, as JSON.  With a shared storage service (JPA,
+ * memcached) any node can finish a ceremony started on another, with no sticky sessions.  Expiry and cleanup
+ * are left to the storage service.
+ *
+ * @author shilen
+ */
+public class StorageServicePendingCeremonyStore implements PendingCeremonyStore {
+
+  /** storage context */
+  public static final String STORAGE_CONTEXT = "edu.duke.oit.idms.idp.authn.webauthn.PendingCeremony";
+
+  private static final SecureRandom random = new SecureRandom();
+
+  private Logger logger = LoggerFactory.getLogger(StorageServicePendingCeremonyStore.class);
+
+  private final StorageService storageService;
+
+  private final ObjectMapper jsonMapper;
+
+  private final long ttlMillis;
+
+  /**
+   * @param storageService
+   * @param jsonMapper
+   * @param ttlMillis how long a ceremony can take
+   */
+  public StorageServicePendingCeremonyStore(StorageService storageService, ObjectMapper jsonMapper, long ttlMillis) {
+    this.storageService = storageService;
+    this.jsonMapper = jsonMapper;
+    this.ttlMillis = ttlMillis;
+  }
+
+  @Override
+  public ByteArray put(Object ceremony) {
+    byte[] requestIdBytes = new byte[64];
+    random.nextBytes(requestIdBytes);
+    ByteArray requestId = new ByteArray(requestIdBytes);
+
+    try {
+      String json = jsonMapper.writeValueAsString(ceremony);
+      if (!storageService.create(STORAGE_CONTEXT, requestId.getBase64Url(), json, System.currentTimeMillis() + ttlMillis)) {
+        throw new RuntimeException("Request id already in use??");
+      }
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new RuntimeException("Unable to store ceremony in " + storageService.getId(), e);
+    }
+
+    return requestId;
+  }
+
+  @Override
+  public <T> T take(ByteArray requestId, Class<T> type) {
+    String key = requestId.getBase64Url();
+
+    try {
+      StorageRecord<?> record = storageService.read(STORAGE_CONTEXT, key);
+      if (record == null) {
+        return null;
+      }
+
+      // only one request gets to delete this version, so only one can finish the ceremony
+      if (!storageService.deleteWithVersion(record.getVersion(), STORAGE_CONTEXT, key)) {
+        logger.warn("Ceremony already taken, requestId=" + key);
+        return null;
+      }
+
+      return jsonMapper.readValue(record.getValue(), type);
+    } catch (Exception e) {
+      logger.error("Unable to read ceremony from " + storageService.getId() + ", requestId=" + key, e);
+      return null;
+    }
+  }
+}
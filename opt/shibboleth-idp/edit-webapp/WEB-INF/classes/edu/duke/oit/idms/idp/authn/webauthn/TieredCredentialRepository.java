@@ -0,0 +1,281 @@
+/**
+ * Copyright 2019 Duke University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package edu.duke.oit.idms.idp.authn.webauthn;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalNotification;
+import com.yubico.webauthn.RegisteredCredential;
+import com.yubico.webauthn.RegistrationResult;
+import com.yubico.webauthn.data.AuthenticatorAttestationResponse;
+import com.yubico.webauthn.data.ByteArray;
+import com.yubico.webauthn.data.PublicKeyCredentialDescriptor;
+import com.yubico.webauthn.data.UserIdentity;
+
+/**
+ * Registrations in two tiers: recently active users in a size bounded LRU cache on the heap, everyone else in
+ * a cold {@link RegistrationStore}, e.g. an {@link OffHeapCredentialRepository} mapped from a local file or the
+ * database.  A user is
+ * promoted as a whole, user handle and all registrations, the first time any of them is looked up, so the rest
+ * of the ceremony is answered from the hot tier.  Heap use follows the active population, not the registered
+ * one.  Users with no registrations aren't cached.
+ *
+ * Writes go to the cold tier first, then to a hot entry.  A promotion that raced with a write to the same user
+ * is dropped instead of leaving a stale entry behind.  Hits, misses, promotions and evictions are gauges under
+ * {@link WebAuthnMetrics#PREFIX}.tier.
+ *
+ * @author shilen
+ */
+public class TieredCredentialRepository implements RegistrationStore {
+
+  private Logger logger = LoggerFactory.getLogger(TieredCredentialRepository.class);
+
+  private final RegistrationStore cold;
+
+  /** registrations by netid for recently active users */
+  private final Cache<String, UserRegistrations> hot;
+
+  /** netid by user handle for the users in the hot tier, only a shortcut past the cold tier for lookups */
+  private final ConcurrentMap<ByteArray, String> hotUsernamesByUserHandle = new ConcurrentHashMap<ByteArray, String>();
+
+  private static final int VERSION_STRIPES = 4096;
+
+  /**
+   * bumped after every write to a user, striped by netid, a promotion that sees its stripe change may have read
+   * the cold tier before the write
+   */
+  private final AtomicLongArray versions = new AtomicLongArray(VERSION_STRIPES);
+
+  private final AtomicLong promotions = new AtomicLong();
+
+  /**
+   * @param cold every registration
+   * @param maxHotUsers most users kept in the hot tier
+   */
+  public TieredCredentialRepository(RegistrationStore cold, long maxHotUsers) {
+    this.cold = cold;
+    this.hot = CacheBuilder.newBuilder()
+        .maximumSize(maxHotUsers)
+        .recordStats()
+        .removalListener(this::internal_removed)
+        .build();
+
+    logger.info("Hot tier configured with maxHotUsers=" + maxHotUsers);
+
+    MetricRegistry registry = WebAuthnMetrics.getMetricRegistry();
+    registry.gauge(MetricRegistry.name(WebAuthnMetrics.PREFIX, "tier", "hotUsers"), () -> (Gauge<Long>)() -> hot.size());
+    registry.gauge(MetricRegistry.name(WebAuthnMetrics.PREFIX, "tier", "hits"), () -> (Gauge<Long>)() -> hot.stats().hitCount());
+    registry.gauge(MetricRegistry.name(WebAuthnMetrics.PREFIX, "tier", "misses"), () -> (Gauge<Long>)() -> hot.stats().missCount());
+    registry.gauge(MetricRegistry.name(WebAuthnMetrics.PREFIX, "tier", "hitRate"), () -> (Gauge<Double>)() -> hot.stats().hitRate());
+    registry.gauge(MetricRegistry.name(WebAuthnMetrics.PREFIX, "tier", "promotions"), () -> (Gauge<Long>)() -> promotions.get());
+    registry.gauge(MetricRegistry.name(WebAuthnMetrics.PREFIX, "tier", "evictions"), () -> (Gauge<Long>)() -> hot.stats().evictionCount());
+  }
+
+  /**
+   * The user is dropped from the hot tier and promoted again when next used.
+   */
+  @Override
+  public void addRegistration(String username, RegistrationResult registration, UserIdentity userIdentity, AuthenticatorAttestationResponse authenticatorAttestationResponse, String nickname, String registrationResponse) {
+    cold.addRegistration(username, registration, userIdentity, authenticatorAttestationResponse, nickname, registrationResponse);
+    versions.incrementAndGet(internal_stripe(username));
+    hot.invalidate(username);
+  }
+
+  @Override
+  public void updateSignatureCount(ByteArray credentialId, ByteArray userHandle, long signatureCount) {
+    cold.updateSignatureCount(credentialId, userHandle, signatureCount);
+
+    // from the cold tier, the shortcut map can be behind the hot tier
+    String username = cold.getUsernameForUserHandle(userHandle).orElse(null);
+    if (username != null) {
+      versions.incrementAndGet(internal_stripe(username));
+      hot.asMap().computeIfPresent(username, (k, user) -> internal_withSignatureCount(user, credentialId, userHandle, signatureCount));
+    }
+  }
+
+  /**
+   * @param username
+   * @return user handle and all registrations for the user
+   */
+  public UserRegistrations getUserRegistrations(String username) {
+    if (username == null || username.isEmpty()) {
+      throw new RuntimeException("No username");
+    }
+
+    UserRegistrations user = hot.getIfPresent(username);
+    if (user != null) {
+      return user;
+    }
+
+    int stripe = internal_stripe(username);
+    long versionBefore = versions.get(stripe);
+    Optional<ByteArray> userHandle = cold.getUserHandleForUsername(username);
+    if (!userHandle.isPresent()) {
+      return UserRegistrations.empty(username);
+    }
+
+    UserRegistrations promoted = new UserRegistrations(username, userHandle.get(), cold.getRegistrationsByUsername(username));
+
+    // writers update the hot entry after bumping the version, so checking it under the entry's lock means a write
+    // either sees this entry or this promotion sees the write (and reads the cold tier again next time)
+    user = hot.asMap().compute(username, (k, existing) -> existing != null ? existing : versions.get(stripe) == versionBefore ? promoted : null);
+    if (user != promoted) {
+      return user == null ? promoted : user;
+    }
+
+    // after the entry is in, see the removal listener
+    hotUsernamesByUserHandle.put(userHandle.get(), username);
+    promotions.incrementAndGet();
+    return promoted;
+  }
+
+  @Override
+  public Collection<RegistrationData> getRegistrationsByUsername(String username) {
+    return getUserRegistrations(username).getRegistrations();
+  }
+
+  /**
+   * Asked for users that never registered as well, so a miss doesn't promote anything.
+   */
+  @Override
+  public boolean hasRegistered(String netid) {
+    if (netid == null || netid.isEmpty()) {
+      return false;
+    }
+
+    return hot.asMap().containsKey(netid) || cold.hasRegistered(netid);
+  }
+
+  @Override
+  public Set<PublicKeyCredentialDescriptor> getCredentialIdsForUsername(String username) {
+    return getUserRegistrations(username).getCredentialDescriptors();
+  }
+
+  @Override
+  public Optional<ByteArray> getUserHandleForUsername(String username) {
+    return getUserRegistrations(username).getUserHandle();
+  }
+
+  @Override
+  public Optional<String> getUsernameForUserHandle(ByteArray userHandle) {
+    UserRegistrations user = internal_getUserRegistrations(userHandle);
+    return user == null ? Optional.empty() : Optional.of(user.getNetid());
+  }
+
+  @Override
+  public Optional<RegisteredCredential> lookup(ByteArray credentialId, ByteArray userHandle) {
+    if (userHandle == null || userHandle.isEmpty()) {
+      return lookupAll(credentialId).stream().findFirst();
+    }
+
+    UserRegistrations user = internal_getUserRegistrations(userHandle);
+    if (user != null) {
+      for (RegistrationData registration : user.getRegistrations()) {
+        if (registration.matches(credentialId, userHandle)) {
+          return Optional.of(registration.getRegisteredCredential());
+        }
+      }
+    }
+
+    return Optional.empty();
+  }
+
+  /**
+   * The cold tier is the only one that knows every user of a credential id, so this always reads it, and
+   * promotes the users found.
+   */
+  @Override
+  public Set<RegisteredCredential> lookupAll(ByteArray credentialId) {
+    Set<RegisteredCredential> credentials = cold.lookupAll(credentialId);
+    for (RegisteredCredential credential : credentials) {
+      internal_getUserRegistrations(credential.getUserHandle());
+    }
+
+    return credentials;
+  }
+
+  /**
+   * @return the store behind the hot tier
+   */
+  public RegistrationStore getColdStore() {
+    return cold;
+  }
+
+  /**
+   * @return hit/miss stats for the hot tier
+   */
+  public String getTierStats() {
+    return "[hotUsers=" + hot.size() + ", hits=" + hot.stats().hitCount() + ", misses=" + hot.stats().missCount() + ", hitRate=" + String.format("%.3f", hot.stats().hitRate()) + ", promotions=" + promotions.get() + ", evictions=" + hot.stats().evictionCount() + "]";
+  }
+
+  /**
+   * @return hot tier entry for the user handle, promoting it if needed, null if not registered
+   */
+  private UserRegistrations internal_getUserRegistrations(ByteArray userHandle) {
+    if (userHandle == null) {
+      throw new RuntimeException("No userHandle");
+    }
+
+    String username = hotUsernamesByUserHandle.get(userHandle);
+    if (username == null) {
+      username = cold.getUsernameForUserHandle(userHandle).orElse(null);
+      if (username == null) {
+        return null;
+      }
+    }
+
+    return getUserRegistrations(username);
+  }
+
+  private void internal_removed(RemovalNotification<String, UserRegistrations> notification) {
+    if (notification.getCause() != RemovalCause.REPLACED && notification.getValue().getUserHandle().isPresent()) {
+      // listeners run after the removal, the user may have been promoted again since
+      hotUsernamesByUserHandle.computeIfPresent(notification.getValue().getUserHandle().get(),
+          (userHandle, netid) -> netid.equals(notification.getKey()) && !hot.asMap().containsKey(netid) ? null : netid);
+    }
+  }
+
+  private static int internal_stripe(String username) {
+    return (username.hashCode() & Integer.MAX_VALUE) % VERSION_STRIPES;
+  }
+
+  private static UserRegistrations internal_withSignatureCount(UserRegistrations user, ByteArray credentialId, ByteArray userHandle, long signatureCount) {
+    List<RegistrationData> registrations = new ArrayList<RegistrationData>();
+    for (RegistrationData registration : user.getRegistrations()) {
+      // the highest count wins like in the cold tier, concurrent updates can arrive out of order
+      registrations.add(registration.matches(credentialId, userHandle) ? registration.withSignatureCount(Math.max(registration.getSignatureCount(), signatureCount)) : registration);
+    }
+
+    return new UserRegistrations(user.getNetid(), user.getUserHandle().orElse(null), registrations);
+  }
+}
@@ -0,0 +1,93 @@
+/**
+ * Copyright 2019 Duke University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package edu.duke.oit.idms.idp.authn.webauthn;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+import com.yubico.webauthn.data.ByteArray;
+import com.yubico.webauthn.data.PublicKeyCredentialDescriptor;
+
+/**
+ * Everything stored for one netid: the user handle (if the user has ever registered) and all of the user's
+ * registrations.  Loaded in one go so the calls the relying party makes for a ceremony can be answered from it.
+ *
+ * @author shilen
+ */
+public final class UserRegistrations {
+
+  private final String netid;
+  private final ByteArray userHandle;
+  private final List<RegistrationData> registrations;
+
+  /**
+   * @param netid
+   * @param userHandle null if the user has no user handle
+   * @param registrations
+   */
+  public UserRegistrations(String netid, ByteArray userHandle, Collection<RegistrationData> registrations) {
+    this.netid = netid;
+    this.userHandle = userHandle;
+    this.registrations = Collections.unmodifiableList(new ArrayList<RegistrationData>(registrations));
+  }
+
+  /**
+   * @param netid
+   * @return registrations for a user that has never registered
+   */
+  public static UserRegistrations empty(String netid) {
+    return new UserRegistrations(netid, null, Collections.<RegistrationData>emptyList());
+  }
+
+  /**
+   * @return the netid
+   */
+  public String getNetid() {
+    return netid;
+  }
+
+  /**
+   * @return the user handle
+   */
+  public Optional<ByteArray> getUserHandle() {
+    return Optional.ofNullable(userHandle);
+  }
+
+  /**
+   * @return the registrations
+   */
+  public List<RegistrationData> getRegistrations() {
+    return registrations;
+  }
+
+  /**
+   * @return credential descriptors for the registrations
+   */
+  public Set<PublicKeyCredentialDescriptor> getCredentialDescriptors() {
+    Set<PublicKeyCredentialDescriptor> credentialIds = new LinkedHashSet<PublicKeyCredentialDescriptor>();
+    for (RegistrationData registration : registrations) {
+      credentialIds.add(registration.getPublicKeyCredentialDescriptor());
+    }
+
+    return credentialIds;
+  }
+}
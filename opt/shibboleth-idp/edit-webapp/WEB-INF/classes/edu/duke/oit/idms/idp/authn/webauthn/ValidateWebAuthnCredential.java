@@ -16,11 +16,6 @@
 
 package edu.duke.oit.idms.idp.authn.webauthn;
 
-import java.util.Arrays;
-import java.util.Collection;
-import java.util.HashSet;
-import java.util.Optional;
-
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.security.auth.Subject;
@@ -41,20 +36,13 @@ import org.opensaml.profile.context.ProfileRequestContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.fasterxml.jackson.annotation.JsonInclude.Include;
-import com.fasterxml.jackson.databind.SerializationFeature;
-import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
-import com.yubico.webauthn.AssertionRequest;
-import com.yubico.webauthn.AssertionResult;
-import com.yubico.webauthn.FinishAssertionOptions;
-import com.yubico.webauthn.RelyingParty;
-import com.yubico.webauthn.data.AttestationConveyancePreference;
-import com.yubico.webauthn.data.RelyingPartyIdentity;
-
 /**
  */
 public class ValidateWebAuthnCredential extends AbstractValidationAction {
 
+    /** Event when too many logins are in progress, see {@link CeremonyLimiter}; the login page is shown again. */
+    @Nonnull @NotEmpty public static final String BUSY = "WebAuthnBusy";
+
     /** Default prefix for metrics. */
     @Nonnull @NotEmpty private static final String DEFAULT_METRIC_NAME = "edu.duke.oit.idms.idp.authn.webauthn";
     
@@ -63,8 +51,6 @@ public class ValidateWebAuthnCredential extends AbstractValidationAction {
 
     /** Attempted username. */
     @Nullable @NotEmpty private String username;
-    
-    private com.fasterxml.jackson.databind.ObjectMapper jsonMapper;
 
     /** relying party id */
     @NonnullAfterInit @NotEmpty private String relyingPartyId;
@@ -72,7 +58,8 @@ public class ValidateWebAuthnCredential extends AbstractValidationAction {
     /** relying party origin */
     @NonnullAfterInit @NotEmpty private String relyingPartyOrigin;
     
-    private RelyingParty rp;
+    /** shared relying party and json mapper */
+    @NonnullAfterInit private WebAuthnEngine engine;
 
     /** Constructor. */
     public ValidateWebAuthnCredential() {
@@ -119,27 +106,8 @@ public class ValidateWebAuthnCredential extends AbstractValidationAction {
           throw new ComponentInitializationException("Relying party id and origin must be set");
         }
         
-        jsonMapper = new com.fasterxml.jackson.databind.ObjectMapper()
-            .configure(SerializationFeature.FAIL_ON_EMPTY_BEANS, false)
-            .setSerializationInclusion(Include.NON_ABSENT)
-            .registerModule(new Jdk8Module());
-        
-        RelyingPartyIdentity rpIdentity = RelyingPartyIdentity.builder()
-            .id(relyingPartyId)
-            .name("Shibboleth Authentication")
-            .build();
-
-        rp = RelyingParty.builder()
-            .identity(rpIdentity)
-            .credentialRepository(RegistrationStorage.getInstance())
-            .origins(new HashSet<>(Arrays.asList(new String[] { relyingPartyOrigin })))
-            .attestationConveyancePreference(Optional.of(AttestationConveyancePreference.DIRECT))
-           // .metadataService(Optional.of(metadataService)) // TODO
-            .allowUnrequestedExtensions(true)
-            .allowUntrustedAttestation(true)
-            .validateSignatureCounter(true)
-           // .appId(appId)
-            .build();
+        // this action is prototype scoped, so don't build a relying party per request
+        engine = WebAuthnEngine.getInstance(relyingPartyId, relyingPartyOrigin);
     }
     
     /** {@inheritDoc} */
@@ -170,80 +138,20 @@ public class ValidateWebAuthnCredential extends AbstractValidationAction {
     /** {@inheritDoc} */
     @Override protected void doExecute(@Nonnull final ProfileRequestContext profileRequestContext,
             @Nonnull final AuthenticationContext authenticationContext) {
+        final CeremonyLimiter limiter = CeremonyLimiter.getInstance();
         try {
-          final HttpServletRequest request = getHttpServletRequest();
-          
-          String body = request.getParameter("webauthnformdata");
-
-          if (body.contains("\"userHandle\":\"\"")) {
-            // https://github.com/Yubico/java-webauthn-server/issues/12
-            log.warn("Response contains an empty userHaNdle, removing it.");
-            body = body.replaceAll("\"userHandle\":\"\"", "\"userHandle\":null");
-          }
+          limiter.acquire();
+        } catch (final CeremonyRejectedException e) {
+          log.warn("{} Rejecting authentication for '{}', {}", getLogPrefix(), username, e.getMessage());
+          handleError(profileRequestContext, authenticationContext, e, BUSY);
+          return;
+        }
         
-          AssertionResponse assertionResponse = jsonMapper.readValue(body, AssertionResponse.class);
-          AssertionRequest assertionRequest = (AssertionRequest)request.getSession().getAttribute("REQUESTID_" + assertionResponse.getRequestId().getBase64Url());
-                  
-          if (assertionRequest == null) {
-            throw new RuntimeException("Authentication not in progress: " + assertionResponse.getRequestId().getBase64Url());
-          }
-          
-          request.getSession().removeAttribute("REQUESTID_" + assertionResponse.getRequestId().getBase64Url());
-          
-          if (!assertionRequest.getUsername().isPresent()) {
-            throw new RuntimeException("No username??");
-          }
-          
-          // TODO check status of account or ensure webauthn credentials are killed when user leaves?  Duke specific code has been taken out
-          
-          AssertionResult result = rp.finishAssertion(
-              FinishAssertionOptions.builder()
-              .request(assertionRequest)
-              .response(assertionResponse.getCredential())
-              .build());
-          
-          // core code should do this but just in case...
-          if (!assertionResponse.getCredential().getResponse().getParsedAuthenticatorData().getFlags().UV) {
-            throw new RuntimeException("No UV flag??");
-          }
-          
-          if (result.isSuccess()) {
-            try {
-              RegistrationStorage.getInstance().updateSignatureCount(result);
-            } catch (Exception e) {
-              log.warn("Failed to update signature count for user \"{}\", credential \"{}\"", result.getUsername(), assertionResponse.getCredential().getId(), e);
-            }
-          } else {
-            throw new RuntimeException("WebAuthn authentication error, warnings=" + result.getWarnings());
-          }
-          
-          String webauthnUserName = result.getUsername();
-          
-          if (!webauthnUserName.equals(assertionRequest.getUsername().get())) {
-            throw new RuntimeException("Username mismatch??  webauthnUserName=" + webauthnUserName + ", assertionRequest.getUsername()=" + assertionRequest.getUsername());
-          }
+        try {
+          final HttpServletRequest request = getHttpServletRequest();
           
-          if (!webauthnUserName.equals(username)) {
-            throw new RuntimeException("Username mismatch??  webauthnUserName=" + webauthnUserName + ", j_username=" + username);
-          }
-                
-          {
-            // if i change the username in the db after the assertion is sent, the user ends up authenticating as the original username that isn't in the db anymore
-            // not sure if that's a real problem.  doing additional check just in case.  though multiple users can have the same credential id?
-            Collection<RegistrationData> allRegistrationsForUser = RegistrationStorage.getInstance().getRegistrationsByUsername(webauthnUserName);
-            boolean found = false;
-            for (RegistrationData data : allRegistrationsForUser) {
-              if (data.getCredentialIdBase64().equals(result.getCredentialId().getBase64Url()) && data.getCredentialIdBase64().equals(assertionResponse.getCredential().getId().getBase64Url()) &&
-                  data.getUserHandleBase64().equals(result.getUserHandle().getBase64Url())) {
-                found = true;
-                break;
-              }
-            }
-            
-            if (!found) {
-              throw new RuntimeException("Unable to find this registration for this user???  webauthnUserName=" + webauthnUserName);
-            }
-          }
+          new AssertionVerifier(engine, PendingCeremonyStoreFactory.getPendingCeremonyStore(request.getServletContext()))
+              .verify(request.getParameter("webauthnformdata"), username);
           
           recordSuccess();
           buildAuthenticationResult(profileRequestContext, authenticationContext);
@@ -251,6 +159,8 @@ public class ValidateWebAuthnCredential extends AbstractValidationAction {
           log.error("{} Authentication failure for '{}'", getLogPrefix(), username, e);
           handleError(profileRequestContext, authenticationContext, e, AuthnEventIds.AUTHN_EXCEPTION);
           recordFailure();
+        } finally {
+          limiter.release();
         }
     }
 
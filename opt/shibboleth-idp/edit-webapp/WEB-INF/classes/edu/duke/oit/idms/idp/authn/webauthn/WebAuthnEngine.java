@@ -0,0 +1,149 @@
+/**
+ * Copyright 2019 Duke University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package edu.duke.oit.idms.idp.authn.webauthn;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Optional;
+
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
+import com.yubico.webauthn.RelyingParty;
+import com.yubico.webauthn.data.AttestationConveyancePreference;
+import com.yubico.webauthn.data.AuthenticatorAssertionResponse;
+import com.yubico.webauthn.data.RelyingPartyIdentity;
+
+/**
+ * The relying party, registration store and JSON mapper shared by the registration servlet and the validation
+ * action.  All are thread safe, so one instance per relying party id and origin is built and reused instead of
+ * per request.
+ *
+ * @author shilen
+ */
+public class WebAuthnEngine {
+
+  private static final Map<String, WebAuthnEngine> instances = new HashMap<String, WebAuthnEngine>();
+
+  private final RelyingParty relyingParty;
+
+  private final RegistrationStore registrationStore;
+
+  private final ObjectMapper jsonMapper;
+
+  private final ObjectReader assertionResponseReader;
+
+  private final ObjectReader registrationResponseReader;
+
+  /**
+   * @return instance for the relying party configured in WebAuthn.properties
+   */
+  public static WebAuthnEngine getInstance() {
+    WebAuthnProperties properties = WebAuthnProperties.getInstance();
+    return getInstance(properties.getProperty("idp.WebAuthn.relyingParty.id", true), properties.getProperty("idp.WebAuthn.relyingParty.origin", true));
+  }
+
+  /**
+   * @param relyingPartyId
+   * @param relyingPartyOrigin
+   * @return instance for the relying party
+   */
+  public synchronized static WebAuthnEngine getInstance(String relyingPartyId, String relyingPartyOrigin) {
+    if (relyingPartyId == null || relyingPartyOrigin == null) {
+      throw new RuntimeException("Relying party id and origin must be set");
+    }
+
+    String key = relyingPartyId + " " + relyingPartyOrigin;
+    WebAuthnEngine instance = instances.get(key);
+    if (instance == null) {
+      instance = new WebAuthnEngine(relyingPartyId, relyingPartyOrigin);
+      instances.put(key, instance);
+    }
+
+    return instance;
+  }
+
+  private WebAuthnEngine(String relyingPartyId, String relyingPartyOrigin) {
+    jsonMapper = new ObjectMapper()
+        .configure(SerializationFeature.FAIL_ON_EMPTY_BEANS, false)
+        .setSerializationInclusion(Include.NON_ABSENT)
+        .registerModule(new Jdk8Module())
+        .addMixIn(AuthenticatorAssertionResponse.class, EmptyUserHandleDeserializer.MIXIN);
+
+    // readers resolve their deserializers up front, so the first login doesn't pay for it
+    assertionResponseReader = jsonMapper.readerFor(AssertionResponse.class);
+    registrationResponseReader = jsonMapper.readerFor(RegistrationResponse.class);
+
+    registrationStore = RegistrationStoreFactory.getRegistrationStore();
+
+    RelyingPartyIdentity rpIdentity = RelyingPartyIdentity.builder()
+        .id(relyingPartyId)
+        .name("Shibboleth Authentication")
+        .build();
+
+    relyingParty = RelyingParty.builder()
+        .identity(rpIdentity)
+        .credentialRepository(new CeremonyCredentialRepository(new MeteredCredentialRepository(registrationStore)))
+        .origins(new HashSet<>(Arrays.asList(new String[] { relyingPartyOrigin })))
+        .attestationConveyancePreference(Optional.of(AttestationConveyancePreference.DIRECT))
+       // .metadataService(Optional.of(metadataService)) // TODO
+        .allowUnrequestedExtensions(true)
+        .allowUntrustedAttestation(true)
+        .validateSignatureCounter(true)
+       // .appId(appId)
+        .build();
+  }
+
+  /**
+   * @return relying party
+   */
+  public RelyingParty getRelyingParty() {
+    return relyingParty;
+  }
+
+  /**
+   * @return registration store, the one behind the relying party's credential repository
+   */
+  public RegistrationStore getRegistrationStore() {
+    return registrationStore;
+  }
+
+  /**
+   * @return json mapper
+   */
+  public ObjectMapper getJsonMapper() {
+    return jsonMapper;
+  }
+
+  /**
+   * @return reader for the assertion response posted by the login page
+   */
+  public ObjectReader getAssertionResponseReader() {
+    return assertionResponseReader;
+  }
+
+  /**
+   * @return reader for the registration response posted by the registration page
+   */
+  public ObjectReader getRegistrationResponseReader() {
+    return registrationResponseReader;
+  }
+}
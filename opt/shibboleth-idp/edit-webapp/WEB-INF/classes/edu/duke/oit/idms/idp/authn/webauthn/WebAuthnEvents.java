@@ -0,0 +1,128 @@
+/**
+ * Copyright 2019 Duke University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package edu.duke.oit.idms.idp.authn.webauthn;
+
+import java.nio.charset.StandardCharsets;
+
+import com.google.common.hash.Hashing;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder events for ceremonies, credential repository calls and signature count updates, so a slow
+ * lookup can be lined up with GC pauses and the ceremony it was part of (same thread, inside its duration).
+ * Stack traces are off and fields are only filled in when the event is enabled, so they can stay on in the
+ * default profile.  Usernames are recorded as a hash.
+ *
+ * @author shilen
+ */
+public class WebAuthnEvents {
+
+  private static final String CATEGORY = "WebAuthn";
+
+  /**
+   * @param username
+   * @return hash of the username for events, 0 if none
+   */
+  public static long usernameHash(String username) {
+    if (username == null) {
+      return 0;
+    }
+
+    return Hashing.sha256().hashString(username, StandardCharsets.UTF_8).asLong();
+  }
+
+  /**
+   * a ceremony step: registration start or finish, authentication start or finish
+   */
+  @Name("edu.duke.oit.idms.idp.authn.webauthn.Ceremony")
+  @Label("WebAuthn Ceremony")
+  @Category(CATEGORY)
+  @StackTrace(false)
+  public static class CeremonyEvent extends Event {
+
+    /** e.g. registration.start, validate */
+    @Label("Phase")
+    public String phase;
+
+    /** see {@link WebAuthnEvents#usernameHash(String)} */
+    @Label("Username Hash")
+    public long usernameHash;
+
+    /** credentials in the request (allowed or excluded) or registered to the user, -1 if not known */
+    @Label("Credential Count")
+    @Description("Credentials in the request or registered to the user, -1 if not known")
+    public int credentialCount = -1;
+
+    /** true if the step succeeded */
+    @Label("Success")
+    public boolean success;
+  }
+
+  /**
+   * a call to the credential repository
+   */
+  @Name("edu.duke.oit.idms.idp.authn.webauthn.CredentialRepository")
+  @Label("WebAuthn Credential Repository Call")
+  @Category(CATEGORY)
+  @StackTrace(false)
+  public static class CredentialRepositoryEvent extends Event {
+
+    /** e.g. lookupAll */
+    @Label("Method")
+    public String method;
+
+    /** see {@link WebAuthnEvents#usernameHash(String)}, of the username passed in or returned */
+    @Label("Username Hash")
+    public long usernameHash;
+
+    /** credentials (or user handles / usernames) returned, -1 if the call failed */
+    @Label("Rows Returned")
+    public int rowsReturned = -1;
+
+    /** true if the call returned, false if it threw */
+    @Label("Success")
+    public boolean success;
+  }
+
+  /**
+   * a signature count update after a successful authentication
+   */
+  @Name("edu.duke.oit.idms.idp.authn.webauthn.SignatureCountUpdate")
+  @Label("WebAuthn Signature Count Update")
+  @Category(CATEGORY)
+  @StackTrace(false)
+  public static class SignatureCountUpdateEvent extends Event {
+
+    /** see {@link WebAuthnEvents#usernameHash(String)} */
+    @Label("Username Hash")
+    public long usernameHash;
+
+    /** count reported by the authenticator */
+    @Label("Signature Count")
+    public long signatureCount;
+
+    /** true if the update succeeded */
+    @Label("Success")
+    public boolean success;
+  }
+}
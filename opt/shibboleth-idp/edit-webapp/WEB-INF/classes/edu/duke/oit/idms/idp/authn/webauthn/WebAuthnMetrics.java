@@ -0,0 +1,76 @@
+/**
+ * Copyright 2019 Duke University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package edu.duke.oit.idms.idp.authn.webauthn;
+
+import org.opensaml.core.metrics.MetricsSupport;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+/**
+ * Timers (with percentiles) and failure counters for each phase of the ceremonies, in the IdP's metric registry
+ * so they show up with the other IdP metrics.  Names are {@link #PREFIX}.phase for timers and
+ * {@link #PREFIX}.phase.failures.cause for failures, where cause is the exception's simple class name.
+ *
+ * @author shilen
+ */
+public class WebAuthnMetrics {
+
+  /** prefix for all metrics, same as the validation action's metric name */
+  public static final String PREFIX = "edu.duke.oit.idms.idp.authn.webauthn";
+
+  /** the IdP registry, or a local one if the IdP has none configured, resolved on first use */
+  private static volatile MetricRegistry registry = null;
+
+  /**
+   * @return the IdP metric registry
+   */
+  public static MetricRegistry getMetricRegistry() {
+    MetricRegistry result = registry;
+    if (result == null) {
+      synchronized (WebAuthnMetrics.class) {
+        result = registry;
+        if (result == null) {
+          result = MetricsSupport.getMetricRegistry();
+          if (result == null) {
+            result = new MetricRegistry();
+          }
+
+          registry = result;
+        }
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   * @param phase e.g. validate.finishAssertion
+   * @return a running timer, stop (close) it when the phase is done
+   */
+  public static Timer.Context time(String phase) {
+    return getMetricRegistry().timer(MetricRegistry.name(PREFIX, phase)).time();
+  }
+
+  /**
+   * @param phase
+   * @param cause
+   */
+  public static void failure(String phase, Throwable cause) {
+    getMetricRegistry().counter(MetricRegistry.name(PREFIX, phase, "failures", cause.getClass().getSimpleName())).inc();
+  }
+}
@@ -0,0 +1,152 @@
+/**
+ * Copyright 2019 Duke University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package edu.duke.oit.idms.idp.authn.webauthn;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Access to WebAuthn.properties for the classes that aren't wired through Spring (the registration servlet and storage).
+ *
+ * @author shilen
+ */
+public class WebAuthnProperties {
+
+  /** location of the properties file, unless the system property below says otherwise */
+  public static final String PROPERTIES_FILE = "/opt/shibboleth-idp/conf/authn/WebAuthn.properties";
+
+  /** system property to load the properties from somewhere else (e.g. benchmarks run outside the IdP) */
+  public static final String PROPERTIES_FILE_SYSTEM_PROPERTY = "edu.duke.oit.idms.idp.authn.webauthn.propertiesFile";
+
+  private static WebAuthnProperties instance = null;
+
+  private final Properties properties;
+
+  private final String file;
+
+  /**
+   * @return instance
+   */
+  public synchronized static WebAuthnProperties getInstance() {
+    if (instance == null) {
+      String file = System.getProperty(PROPERTIES_FILE_SYSTEM_PROPERTY, PROPERTIES_FILE);
+      Properties prop = new Properties();
+      try (InputStream in = new FileInputStream(new File(file))) {
+        prop.load(in);
+      } catch (Exception e) {
+        throw new RuntimeException("Unable to load " + file, e);
+      }
+
+      instance = new WebAuthnProperties(prop, file);
+    }
+
+    return instance;
+  }
+
+  private WebAuthnProperties(Properties properties, String file) {
+    this.properties = properties;
+    this.file = file;
+  }
+
+  /**
+   * @param name
+   * @param required
+   * @return value, trimmed
+   */
+  public String getProperty(String name, boolean required) {
+    String value = properties.getProperty(name);
+    if (value != null) {
+      value = value.trim();
+    }
+
+    if (value == null || value.isEmpty()) {
+      if (required) {
+        throw new RuntimeException("Missing required property " + name + " in " + file);
+      }
+
+      return null;
+    }
+
+    return value;
+  }
+
+  /**
+   * @param name
+   * @param required
+   * @param defaultValue
+   * @return value
+   */
+  public String getProperty(String name, boolean required, String defaultValue) {
+    String value = getProperty(name, required);
+    return value == null ? defaultValue : value;
+  }
+
+  /**
+   * @param name
+   * @param required
+   * @param defaultValue
+   * @return value
+   */
+  public int getPropertyInt(String name, boolean required, int defaultValue) {
+    String value = getProperty(name, required);
+    if (value == null) {
+      return defaultValue;
+    }
+
+    try {
+      return Integer.parseInt(value);
+    } catch (NumberFormatException e) {
+      throw new RuntimeException("Invalid integer for property " + name + ": " + value, e);
+    }
+  }
+
+  /**
+   * @param name
+   * @param required
+   * @param defaultValue
+   * @return value
+   */
+  public long getPropertyLong(String name, boolean required, long defaultValue) {
+    String value = getProperty(name, required);
+    if (value == null) {
+      return defaultValue;
+    }
+
+    try {
+      return Long.parseLong(value);
+    } catch (NumberFormatException e) {
+      throw new RuntimeException("Invalid long for property " + name + ": " + value, e);
+    }
+  }
+
+  /**
+   * @param name
+   * @param required
+   * @param defaultValue
+   * @return value
+   */
+  public boolean getPropertyBoolean(String name, boolean required, boolean defaultValue) {
+    String value = getProperty(name, required);
+    if (value == null) {
+      return defaultValue;
+    }
+
+    return Boolean.parseBoolean(value);
+  }
+}